@@ -0,0 +1,219 @@
+package org.fiolino.benchmark;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MutableCallSite;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An AlmostFinal variant that watches its own update rate.
+ *
+ * As long as the value changes rarely, the getter returns a constant that the JIT can fold, just like
+ * AlmostFinal does. If the value gets updated more than maxFlipsPerSecond times within one second, the getter
+ * is relinked to read a volatile field instead, so that further updates don't invalidate compiled code any more.
+ * It switches back to the constant once the value hasn't changed for a second: a daemon timer checks that a
+ * second after the switch, and again whenever there was an update in the meantime. An update after a quiet
+ * second, or a call to relax(), does the same check earlier.
+ *
+ * Created by kuli on 17.10.26.
+ */
+abstract class AdaptiveAlmostFinal<T> {
+
+    static final int DEFAULT_MAX_FLIPS_PER_SECOND = 10;
+
+    private static final long WINDOW = TimeUnit.SECONDS.toNanos(1);
+
+    private static final ScheduledExecutorService RELAXER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "AdaptiveAlmostFinal relaxer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final MutableCallSite callSite;
+    private final int maxFlipsPerSecond;
+
+    private long windowStart;
+    private int flipsInWindow;
+    private long lastUpdate;
+    private boolean isVolatile;
+    private InvocationMetrics metrics = InvocationMetrics.NONE;
+
+    AdaptiveAlmostFinal(MethodHandle initialTarget, int maxFlipsPerSecond) {
+        callSite = new MutableCallSite(initialTarget);
+        this.maxFlipsPerSecond = maxFlipsPerSecond;
+        windowStart = lastUpdate = System.nanoTime();
+    }
+
+    static AdaptiveAlmostFinal<Integer> forInt(int initialValue) {
+        return forInt(initialValue, DEFAULT_MAX_FLIPS_PER_SECOND);
+    }
+
+    static AdaptiveAlmostFinal<Integer> forInt(int initialValue, int maxFlipsPerSecond) {
+        return new IntValue(initialValue, maxFlipsPerSecond);
+    }
+
+    static AdaptiveAlmostFinal<Boolean> forBoolean(boolean initialValue) {
+        return forBoolean(initialValue, DEFAULT_MAX_FLIPS_PER_SECOND);
+    }
+
+    static AdaptiveAlmostFinal<Boolean> forBoolean(boolean initialValue, int maxFlipsPerSecond) {
+        return new BooleanValue(initialValue, maxFlipsPerSecond);
+    }
+
+    /**
+     * Counts updates under the given name; see InvocationMetrics.
+     */
+    synchronized AdaptiveAlmostFinal<T> withMetrics(String name) {
+        metrics = InvocationMetrics.named(name);
+        return this;
+    }
+
+    /**
+     * Creates a handle of type ()T, where T is the primitive type of this value.
+     */
+    MethodHandle createGetter() {
+        return callSite.dynamicInvoker();
+    }
+
+    /**
+     * Sets a new value. Compiled code gets invalidated only while the getter is in its constant mode.
+     */
+    synchronized void updateTo(T newValue) {
+        store(newValue);
+        if (InvocationMetrics.enabled()) {
+            metrics.updated();
+        }
+        long now = System.nanoTime();
+        if (now - windowStart >= WINDOW) {
+            windowStart = now;
+            flipsInWindow = 0;
+        }
+        flipsInWindow++;
+        boolean wasQuiet = now - lastUpdate >= WINDOW;
+        lastUpdate = now;
+
+        if (isVolatile) {
+            if (wasQuiet) {
+                relink(false);
+            }
+        } else if (flipsInWindow > maxFlipsPerSecond) {
+            relink(true);
+        } else {
+            relink(false);
+        }
+    }
+
+    /**
+     * Switches back to the constant getter if the value hasn't changed for a second.
+     *
+     * @return true if the getter is constant now
+     */
+    synchronized boolean relax() {
+        if (isVolatile && System.nanoTime() - lastUpdate >= WINDOW) {
+            relink(false);
+        }
+        return !isVolatile;
+    }
+
+    /**
+     * Whether the getter currently reads the volatile field.
+     */
+    synchronized boolean isVolatile() {
+        return isVolatile;
+    }
+
+    private void relink(boolean toVolatile) {
+        if (toVolatile && !isVolatile) {
+            scheduleRelax(WINDOW);
+        }
+        isVolatile = toVolatile;
+        callSite.setTarget(toVolatile ? volatileGetter() : constantGetter());
+        MutableCallSite.syncAll(new MutableCallSite[] {callSite});
+    }
+
+    private void scheduleRelax(long delay) {
+        RELAXER.schedule(this::relaxWhenQuiet, delay, TimeUnit.NANOSECONDS);
+    }
+
+    private synchronized void relaxWhenQuiet() {
+        if (!isVolatile) {
+            return;
+        }
+        long quiet = System.nanoTime() - lastUpdate;
+        if (quiet >= WINDOW) {
+            relink(false);
+        } else {
+            scheduleRelax(WINDOW - quiet);
+        }
+    }
+
+    abstract void store(T newValue);
+
+    abstract MethodHandle constantGetter();
+
+    abstract MethodHandle volatileGetter();
+
+    private static MethodHandle findGetter(MethodHandles.Lookup lookup, Class<?> type) {
+        try {
+            return lookup.findGetter(lookup.lookupClass(), "value", type);
+        } catch (NoSuchFieldException | IllegalAccessException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    private static final class IntValue extends AdaptiveAlmostFinal<Integer> {
+        private static final MethodHandle GETTER = findGetter(MethodHandles.lookup(), int.class);
+
+        private volatile int value;
+        private final MethodHandle volatileGetter = GETTER.bindTo(this);
+
+        IntValue(int value, int maxFlipsPerSecond) {
+            super(MethodHandles.constant(int.class, value), maxFlipsPerSecond);
+            this.value = value;
+        }
+
+        @Override
+        void store(Integer newValue) {
+            value = newValue;
+        }
+
+        @Override
+        MethodHandle constantGetter() {
+            return MethodHandles.constant(int.class, value);
+        }
+
+        @Override
+        MethodHandle volatileGetter() {
+            return volatileGetter;
+        }
+    }
+
+    private static final class BooleanValue extends AdaptiveAlmostFinal<Boolean> {
+        private static final MethodHandle GETTER = findGetter(MethodHandles.lookup(), boolean.class);
+
+        private volatile boolean value;
+        private final MethodHandle volatileGetter = GETTER.bindTo(this);
+
+        BooleanValue(boolean value, int maxFlipsPerSecond) {
+            super(MethodHandles.constant(boolean.class, value), maxFlipsPerSecond);
+            this.value = value;
+        }
+
+        @Override
+        void store(Boolean newValue) {
+            value = newValue;
+        }
+
+        @Override
+        MethodHandle constantGetter() {
+            return MethodHandles.constant(boolean.class, value);
+        }
+
+        @Override
+        MethodHandle volatileGetter() {
+            return volatileGetter;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package org.fiolino.benchmark;
+
+import org.fiolino.common.reflection.AlmostFinal;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds the flip rate from which on the AdaptiveAlmostFinal beats AlmostFinal, and checks that it stays
+ * as fast as AlmostFinal when the value changes rarely.
+ *
+ * Created by kuli on 17.10.26.
+ */
+@BenchmarkMode(Mode.AverageTime) @Warmup(iterations = 5) @Fork(value = 1) @OutputTimeUnit(TimeUnit.NANOSECONDS) @Measurement(iterations = 10)
+@State(Scope.Thread)
+public class AdaptiveAlmostFinalBenchmark {
+
+    private static final AlmostFinal<Integer> WHAT_TO_ADD = AlmostFinal.forInt(2);
+    private static final MethodHandle GETTER_HANDLE = WHAT_TO_ADD.createGetter();
+
+    private static final AdaptiveAlmostFinal<Integer> ADAPTIVE_WHAT_TO_ADD = AdaptiveAlmostFinal.forInt(2);
+    private static final MethodHandle ADAPTIVE_GETTER_HANDLE = ADAPTIVE_WHAT_TO_ADD.createGetter();
+
+    private static volatile int definitelyNotConstant = 2;
+
+    @Param({"0", "1", "10", "100", "1000", "10000"})
+    public int flipsPerSecond;
+
+    private long flipIntervalNanos;
+    private long nextFlip;
+    private int nextValue = 3;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        flipIntervalNanos = flipsPerSecond == 0 ? Long.MAX_VALUE : TimeUnit.SECONDS.toNanos(1) / flipsPerSecond;
+        nextFlip = flipsPerSecond == 0 ? Long.MAX_VALUE : System.nanoTime() + flipIntervalNanos;
+    }
+
+    @TearDown(Level.Iteration)
+    public void printMode() {
+        System.out.println("Adaptive getter is volatile: " + ADAPTIVE_WHAT_TO_ADD.isVolatile());
+    }
+
+    private boolean isFlipDue() {
+        long now = System.nanoTime();
+        if (now < nextFlip) {
+            return false;
+        }
+        nextFlip = now + flipIntervalNanos;
+        return true;
+    }
+
+    private int nextValue() {
+        int v = nextValue;
+        nextValue = v == 2 ? 3 : 2;
+        return v;
+    }
+
+    @Benchmark
+    public void testAlmostFinalHandle(Blackhole blackhole) throws Throwable {
+        if (isFlipDue()) {
+            WHAT_TO_ADD.updateTo(nextValue());
+        }
+        int count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += (int) GETTER_HANDLE.invokeExact();
+        }
+        blackhole.consume(count);
+    }
+
+    @Benchmark
+    public void testAdaptiveHandle(Blackhole blackhole) throws Throwable {
+        if (isFlipDue()) {
+            ADAPTIVE_WHAT_TO_ADD.updateTo(nextValue());
+        }
+        int count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += (int) ADAPTIVE_GETTER_HANDLE.invokeExact();
+        }
+        blackhole.consume(count);
+    }
+
+    @Benchmark
+    public void testDirectVolatile(Blackhole blackhole) {
+        if (isFlipDue()) {
+            definitelyNotConstant = nextValue();
+        }
+        int count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += definitelyNotConstant;
+        }
+        blackhole.consume(count);
+    }
+}
@@ -0,0 +1,136 @@
+package org.fiolino.benchmark;
+
+import org.fiolino.common.reflection.Methods;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Lambdafies ten static methods in a fresh JVM, once with classes spun at runtime, and once with the classes
+ * that the LambdafyProcessor has generated at build time.
+ *
+ * The pregenerated lambdas need neither a LambdaMetafactory bootstrap nor any class spinning; they're just
+ * loaded from the jar. Still they don't start faster than the pooled spun ones, since these share one class for
+ * all ten targets. The teardown prints how many classes got loaded and how much the Metaspace grew.
+ * SumUpIntegersBenchmark.testHandleMethodPregenerated shows that they're as fast as the spun ones later on.
+ *
+ * Created by kuli on 17.10.26.
+ */
+@BenchmarkMode(Mode.SingleShotTime) @Warmup(iterations = 0) @Fork(value = 20) @OutputTimeUnit(TimeUnit.MICROSECONDS) @Measurement(iterations = 1)
+@State(Scope.Benchmark)
+public class AheadOfTimeLambdaStartupBenchmark {
+
+    private static final int TARGETS = 10;
+
+    @PregeneratedLambda(IntSupplier.class)
+    static int value0() {
+        return 0;
+    }
+
+    @PregeneratedLambda(IntSupplier.class)
+    static int value1() {
+        return 1;
+    }
+
+    @PregeneratedLambda(IntSupplier.class)
+    static int value2() {
+        return 2;
+    }
+
+    @PregeneratedLambda(IntSupplier.class)
+    static int value3() {
+        return 3;
+    }
+
+    @PregeneratedLambda(IntSupplier.class)
+    static int value4() {
+        return 4;
+    }
+
+    @PregeneratedLambda(IntSupplier.class)
+    static int value5() {
+        return 5;
+    }
+
+    @PregeneratedLambda(IntSupplier.class)
+    static int value6() {
+        return 6;
+    }
+
+    @PregeneratedLambda(IntSupplier.class)
+    static int value7() {
+        return 7;
+    }
+
+    @PregeneratedLambda(IntSupplier.class)
+    static int value8() {
+        return 8;
+    }
+
+    @PregeneratedLambda(IntSupplier.class)
+    static int value9() {
+        return 9;
+    }
+
+    private final MethodHandle[] targets = new MethodHandle[TARGETS];
+    private long loadedClassesAtStart;
+    private long metaspaceAtStart;
+
+    @Setup(Level.Iteration)
+    public void start() throws IllegalAccessException, NoSuchMethodException {
+        for (int i = 0; i < TARGETS; i++) {
+            targets[i] = lookup().findStatic(AheadOfTimeLambdaStartupBenchmark.class, "value" + i, methodType(int.class));
+        }
+        loadedClassesAtStart = ManagementFactory.getClassLoadingMXBean().getTotalLoadedClassCount();
+        metaspaceAtStart = metaspaceUsage();
+    }
+
+    @TearDown(Level.Iteration)
+    public void stop() {
+        long loadedClasses = ManagementFactory.getClassLoadingMXBean().getTotalLoadedClassCount() - loadedClassesAtStart;
+        long metaspaceGrowth = metaspaceUsage() - metaspaceAtStart;
+        System.out.println();
+        System.out.println("Loaded " + loadedClasses + " classes, Metaspace grew by " + metaspaceGrowth / 1024 + " KB");
+    }
+
+    private static long metaspaceUsage() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getName().equals("Metaspace")) {
+                return pool.getUsage().getUsed();
+            }
+        }
+        return 0;
+    }
+
+    @Benchmark
+    public void testMethodsLambdafy(Blackhole blackhole) {
+        MethodHandles.Lookup lookup = lookup();
+        for (MethodHandle t : targets) {
+            blackhole.consume(Methods.lambdafy(lookup, t, IntSupplier.class).getAsInt());
+        }
+    }
+
+    @Benchmark
+    public void testSpunLambdafy(Blackhole blackhole) {
+        for (MethodHandle t : targets) {
+            blackhole.consume(Lambdas.lambdafy(t, IntSupplier.class).getAsInt());
+        }
+    }
+
+    @Benchmark
+    public void testPregeneratedLambdafy(Blackhole blackhole) {
+        MethodHandles.Lookup lookup = lookup();
+        for (MethodHandle t : targets) {
+            blackhole.consume(Lambdas.lambdafy(lookup, t, IntSupplier.class).getAsInt());
+        }
+    }
+}
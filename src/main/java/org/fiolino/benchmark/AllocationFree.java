@@ -0,0 +1,19 @@
+package org.fiolino.benchmark;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a benchmark method that must not allocate anything.
+ *
+ * BenchmarkMain fails if the GC profiler reports any allocation per operation for such a benchmark, apart from
+ * the background noise of JMH's own threads.
+ *
+ * Created by kuli on 17.10.26.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+@interface AllocationFree {
+}
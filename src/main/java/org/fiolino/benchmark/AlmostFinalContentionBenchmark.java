@@ -0,0 +1,93 @@
+package org.fiolino.benchmark;
+
+import org.fiolino.common.reflection.AlmostFinal;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Concurrent readers of an AlmostFinal getter while another thread keeps flipping its value.
+ *
+ * Every group runs one writer thread and several reader threads. The readers' sample time distribution shows
+ * the cost of the deoptimization after each updateTo() (the high percentiles) and how fast the JIT recovers
+ * (the median). The "steady" group has no writer at all and serves as the reference.
+ *
+ * The number of readers can be changed on the command line with -tg, e.g. -tg 1,16 for sixteen readers.
+ *
+ * Created by kuli on 17.10.26.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime}) @Warmup(iterations = 5) @Fork(value = 1) @OutputTimeUnit(TimeUnit.MICROSECONDS) @Measurement(iterations = 10)
+@State(Scope.Group)
+public class AlmostFinalContentionBenchmark {
+
+    private static final AlmostFinal<Integer> WHAT_TO_ADD = AlmostFinal.forInt(2);
+    private static final MethodHandle GETTER_HANDLE = WHAT_TO_ADD.createGetter();
+
+    private static volatile int definitelyNotConstant = 2;
+
+    /**
+     * How long the writer waits between two updates.
+     */
+    @Param({"1", "10", "100"})
+    public int flipIntervalMillis;
+
+    private int nextValue = 3;
+
+    private int nextValue() {
+        int v = nextValue;
+        nextValue = v == 2 ? 3 : 2;
+        return v;
+    }
+
+    @TearDown(Level.Iteration)
+    public void reset() {
+        WHAT_TO_ADD.updateTo(2);
+        definitelyNotConstant = 2;
+    }
+
+    @Benchmark
+    @Group("almostFinal") @GroupThreads(1)
+    public void flipAlmostFinal() throws InterruptedException {
+        WHAT_TO_ADD.updateTo(nextValue());
+        TimeUnit.MILLISECONDS.sleep(flipIntervalMillis);
+    }
+
+    @Benchmark
+    @Group("almostFinal") @GroupThreads(4)
+    public void readAlmostFinal(Blackhole blackhole) throws Throwable {
+        int count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += (int) GETTER_HANDLE.invokeExact();
+        }
+        blackhole.consume(count);
+    }
+
+    @Benchmark
+    @Group("volatile") @GroupThreads(1)
+    public void flipVolatile() throws InterruptedException {
+        definitelyNotConstant = nextValue();
+        TimeUnit.MILLISECONDS.sleep(flipIntervalMillis);
+    }
+
+    @Benchmark
+    @Group("volatile") @GroupThreads(4)
+    public void readVolatile(Blackhole blackhole) {
+        int count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += definitelyNotConstant;
+        }
+        blackhole.consume(count);
+    }
+
+    @Benchmark
+    @Group("steady") @GroupThreads(4)
+    public void readAlmostFinalSteady(Blackhole blackhole) throws Throwable {
+        int count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += (int) GETTER_HANDLE.invokeExact();
+        }
+        blackhole.consume(count);
+    }
+}
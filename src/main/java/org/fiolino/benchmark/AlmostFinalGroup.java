@@ -0,0 +1,162 @@
+package org.fiolino.benchmark;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * A group of almost final values that can be updated together, invalidating compiled code only once.
+ *
+ * All values of a group live in one immutable snapshot array, which a single MutableCallSite returns as a
+ * constant. Each value's getter filters that snapshot down to its own element. A commit copies the snapshot,
+ * applies all changes to the copy and relinks the call site to it once, so that code reading any number of the
+ * group's values gets invalidated exactly once per commit, no matter how many values changed. Calling
+ * AlmostFinal.updateTo() in a row instead invalidates once per value, and may let the readers recompile in
+ * between, only to deoptimize them again.
+ *
+ * There are two costs: the JIT folds the snapshot, but not its elements, so every read is one array load; and a
+ * commit invalidates all readers of the group, even those that only read unchanged values.
+ *
+ * Created by kuli on 17.10.26.
+ */
+final class AlmostFinalGroup {
+
+    private static final MethodHandle ELEMENT = MethodHandles.arrayElementGetter(Object[].class);
+
+    private final MutableCallSite snapshot = new MutableCallSite(MethodType.methodType(Object[].class));
+    private final MethodHandle snapshotGetter = snapshot.dynamicInvoker();
+    private Object[] values = new Object[0];
+    private InvocationMetrics metrics = InvocationMetrics.NONE;
+
+    AlmostFinalGroup() {
+        publish(values);
+    }
+
+    /**
+     * Counts committed transactions under the given name; see InvocationMetrics.
+     */
+    synchronized AlmostFinalGroup withMetrics(String name) {
+        metrics = InvocationMetrics.named(name);
+        return this;
+    }
+
+    Value<Integer> forInt(int initialValue) {
+        return create(int.class, initialValue);
+    }
+
+    Value<Boolean> forBoolean(boolean initialValue) {
+        return create(boolean.class, initialValue);
+    }
+
+    private synchronized <T> Value<T> create(Class<?> type, T initialValue) {
+        int index = values.length;
+        Object[] next = Arrays.copyOf(values, index + 1);
+        next[index] = initialValue;
+        publish(next);
+        return new Value<>(this, type, index);
+    }
+
+    /**
+     * Starts collecting updates that get published together by Transaction.commit().
+     */
+    Transaction begin() {
+        return new Transaction(this);
+    }
+
+    private synchronized void commit(Map<Value<?>, Object> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        Object[] next = values.clone();
+        for (Map.Entry<Value<?>, Object> e : changes.entrySet()) {
+            next[e.getKey().index] = e.getValue();
+        }
+        publish(next);
+        if (InvocationMetrics.enabled()) {
+            metrics.updated();
+        }
+    }
+
+    private void publish(Object[] next) {
+        values = next;
+        snapshot.setTarget(MethodHandles.constant(Object[].class, next));
+        MutableCallSite.syncAll(new MutableCallSite[] {snapshot});
+    }
+
+    /**
+     * Collects new values for several members of the group.
+     */
+    static final class Transaction {
+        private final AlmostFinalGroup group;
+        private final Map<Value<?>, Object> changes = new IdentityHashMap<>();
+        private boolean committed;
+
+        private Transaction(AlmostFinalGroup group) {
+            this.group = group;
+        }
+
+        /**
+         * Adds a new value; fails with an IllegalStateException once the transaction is committed.
+         */
+        <T> Transaction set(Value<T> value, T newValue) {
+            checkOpen();
+            if (value.group != group) {
+                throw new IllegalArgumentException(value + " belongs to another group");
+            }
+            changes.put(value, newValue);
+            return this;
+        }
+
+        /**
+         * Publishes all collected values at once. The transaction can't be used any more afterwards; any further
+         * call throws an IllegalStateException.
+         */
+        void commit() {
+            checkOpen();
+            committed = true;
+            group.commit(changes);
+            changes.clear();
+        }
+
+        private void checkOpen() {
+            if (committed) {
+                throw new IllegalStateException("Transaction was committed already");
+            }
+        }
+    }
+
+    /**
+     * One almost final value of a group.
+     */
+    static final class Value<T> {
+        private final AlmostFinalGroup group;
+        private final Class<?> type;
+        private final int index;
+
+        private Value(AlmostFinalGroup group, Class<?> type, int index) {
+            this.group = group;
+            this.type = type;
+            this.index = index;
+        }
+
+        /**
+         * Creates a handle of type ()T, where T is the primitive type for ints and booleans.
+         */
+        MethodHandle createGetter() {
+            MethodHandle element = MethodHandles.insertArguments(ELEMENT, 1, index)
+                    .asType(MethodType.methodType(type, Object[].class));
+            return MethodHandles.filterReturnValue(group.snapshotGetter, element);
+        }
+
+        /**
+         * Sets only this value; same as a transaction with a single change.
+         */
+        void updateTo(T newValue) {
+            group.begin().set(this, newValue).commit();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.fiolino.benchmark;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Selects one of several handles by an enum key, like AlmostFinal does for booleans.
+ *
+ * The invoker is linked directly to the selected handle, so the JIT sees a monomorphic call of the current
+ * choice and can inline it. Selecting another key relinks the invoker, which invalidates compiled callers once.
+ * Unlike a tree of almost final booleans, the switch is atomic: no caller ever runs a handle that wasn't selected.
+ *
+ * Created by kuli on 17.10.26.
+ */
+final class AlmostFinalSelector<K extends Enum<K>> {
+
+    private final Map<K, MethodHandle> targets;
+    private final MutableCallSite callSite;
+    private K selected;
+    private InvocationMetrics metrics = InvocationMetrics.NONE;
+
+    /**
+     * @param targets All selectable handles; they must have the same type
+     * @param initial The key to start with
+     */
+    AlmostFinalSelector(Map<K, MethodHandle> targets, K initial) {
+        if (targets.isEmpty()) {
+            throw new IllegalArgumentException("No targets");
+        }
+        this.targets = new EnumMap<>(targets);
+        MethodType type = null;
+        for (Map.Entry<K, MethodHandle> e : this.targets.entrySet()) {
+            MethodType t = e.getValue().type();
+            if (type == null) {
+                type = t;
+            } else if (!type.equals(t)) {
+                throw new IllegalArgumentException(e.getKey() + " has type " + t + ", expected " + type);
+            }
+        }
+        callSite = new MutableCallSite(type);
+        select(initial);
+    }
+
+    /**
+     * Creates a handle of the targets' type that calls the currently selected one.
+     */
+    MethodHandle createInvoker() {
+        return callSite.dynamicInvoker();
+    }
+
+    /**
+     * Counts switches under the given name; see InvocationMetrics.
+     */
+    synchronized AlmostFinalSelector<K> withMetrics(String name) {
+        metrics = InvocationMetrics.named(name);
+        return this;
+    }
+
+    synchronized K getSelected() {
+        return selected;
+    }
+
+    /**
+     * Switches to another target. Selecting the current key again does nothing.
+     */
+    synchronized void select(K key) {
+        if (key == selected) {
+            return;
+        }
+        MethodHandle target = targets.get(key);
+        if (target == null) {
+            throw new IllegalArgumentException("No target for " + key);
+        }
+        selected = key;
+        callSite.setTarget(target);
+        MutableCallSite.syncAll(new MutableCallSite[] {callSite});
+        if (InvocationMetrics.enabled()) {
+            metrics.updated();
+        }
+    }
+}
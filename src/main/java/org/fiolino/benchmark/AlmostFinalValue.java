@@ -0,0 +1,131 @@
+package org.fiolino.benchmark;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An almost final value of any type, not only int and boolean like AlmostFinal.
+ *
+ * The getter returns the current value as a constant. For objects, this only folds the reference itself; HotSpot
+ * doesn't trust final instance fields, so reading them from the constant still costs a load each time.
+ * That's why createGetter() accepts a projection like a field getter: its result gets computed once per update
+ * and linked as a constant of its own, so that reads of the held object's fields fold as well.
+ *
+ * Created by kuli on 17.10.26.
+ */
+final class AlmostFinalValue<T> {
+
+    private final Class<?> type;
+    private final MutableCallSite callSite;
+    private final List<Projection> projections = new ArrayList<>();
+    private Object current;
+    private InvocationMetrics metrics = InvocationMetrics.NONE;
+
+    private AlmostFinalValue(Class<?> type, Object initialValue) {
+        this.type = type;
+        current = initialValue;
+        callSite = new MutableCallSite(constant(type, initialValue));
+    }
+
+    static <T> AlmostFinalValue<T> forObject(Class<T> type, T initialValue) {
+        if (type.isPrimitive()) {
+            throw new IllegalArgumentException(type + " is primitive");
+        }
+        return new AlmostFinalValue<>(type, initialValue);
+    }
+
+    static AlmostFinalValue<Long> forLong(long initialValue) {
+        return new AlmostFinalValue<>(long.class, initialValue);
+    }
+
+    static AlmostFinalValue<Double> forDouble(double initialValue) {
+        return new AlmostFinalValue<>(double.class, initialValue);
+    }
+
+    /**
+     * Counts updates under the given name; see InvocationMetrics.
+     */
+    synchronized AlmostFinalValue<T> withMetrics(String name) {
+        metrics = InvocationMetrics.named(name);
+        return this;
+    }
+
+    /**
+     * Creates a handle of type ()T, where T is the primitive type for longs and doubles.
+     */
+    MethodHandle createGetter() {
+        return callSite.dynamicInvoker();
+    }
+
+    /**
+     * Creates a handle of type ()R that returns what the projection returns for the current value.
+     *
+     * @param projection Some (T)R, like a getter of a final field; must not have side effects
+     */
+    synchronized MethodHandle createGetter(MethodHandle projection) {
+        MethodType projectionType = projection.type();
+        if (projectionType.parameterCount() != 1 || !projectionType.parameterType(0).isAssignableFrom(type)) {
+            throw new IllegalArgumentException(projection + " doesn't accept " + type.getName());
+        }
+        Projection p = new Projection(projection);
+        projections.add(p);
+        return p.callSite.dynamicInvoker();
+    }
+
+    /**
+     * Sets a new value and relinks the getter and all projections with a single sync.
+     * If some projection fails, nothing gets changed.
+     */
+    synchronized void updateTo(T newValue) {
+        int n = projections.size();
+        MethodHandle[] targets = new MethodHandle[n];
+        for (int i = 0; i < n; i++) {
+            targets[i] = projections.get(i).targetFor(newValue);
+        }
+
+        current = newValue;
+        MutableCallSite[] callSites = new MutableCallSite[n + 1];
+        callSite.setTarget(constant(type, newValue));
+        callSites[n] = callSite;
+        for (int i = 0; i < n; i++) {
+            callSites[i] = projections.get(i).callSite;
+            callSites[i].setTarget(targets[i]);
+        }
+        MutableCallSite.syncAll(callSites);
+        if (InvocationMetrics.enabled()) {
+            metrics.updated();
+        }
+    }
+
+    private static MethodHandle constant(Class<?> type, Object value) {
+        return MethodHandles.constant(Object.class, value).asType(MethodType.methodType(type));
+    }
+
+    private final class Projection {
+        private final MethodHandle projection;
+        private final MutableCallSite callSite;
+
+        Projection(MethodHandle projection) {
+            this.projection = projection.asType(MethodType.methodType(Object.class, Object.class));
+            callSite = new MutableCallSite(MethodType.methodType(projection.type().returnType()));
+            callSite.setTarget(targetFor(current));
+        }
+
+        MethodHandle targetFor(Object value) {
+            Object result;
+            try {
+                result = (Object) projection.invokeExact(value);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new UndeclaredThrowableException(t);
+            }
+            return constant(callSite.type().returnType(), result);
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package org.fiolino.benchmark;
+
+import org.fiolino.common.reflection.Methods;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.IntUnaryOperator;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Applies a handle to every element of an int[], long[] or double[] array.
+ *
+ * The handle gets lambdafied once per batch, to an IntUnaryOperator, LongUnaryOperator or DoubleUnaryOperator,
+ * whichever fits the array. With a lookup that reveals it as a direct handle, that's done by Methods.lambdafy(),
+ * so that the lambda class calls the method itself, and the loop inlines it as long as it sees no more than two
+ * such classes. All other handles get a lambda from Lambdas, which invokes the handle per element, since it's no
+ * constant within the loop; that costs a few nanoseconds each.
+ *
+ * Arrays up to the threshold are processed in a plain loop on the calling thread, which doesn't allocate anything.
+ * Larger ones get split in halves on the ForkJoinPool, into about four chunks per worker, but not much smaller than
+ * the threshold. A pool with a parallelism of one never splits.
+ *
+ * The handle must be free of side effects, since the order of its executions is undefined.
+ *
+ * Created by kuli on 17.10.26.
+ */
+final class BatchInvoker {
+
+    static final int DEFAULT_THRESHOLD = 1 << 14;
+
+    private static final int CHUNKS_PER_WORKER = 4;
+
+    private final ForkJoinPool pool;
+    private final int threshold;
+
+    /**
+     * Uses the common pool and the default threshold.
+     */
+    BatchInvoker() {
+        this(ForkJoinPool.commonPool(), DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param pool Where larger arrays get processed
+     * @param threshold Arrays up to this length are processed sequentially, and chunks never get smaller
+     */
+    BatchInvoker(ForkJoinPool pool, int threshold) {
+        if (threshold <= 0) {
+            throw new IllegalArgumentException("Threshold must be positive: " + threshold);
+        }
+        this.pool = pool;
+        this.threshold = threshold;
+    }
+
+    IntBatch forInts(MethodHandle target) {
+        return forInts(null, target);
+    }
+
+    /**
+     * @param lookup Reveals the target if it's a direct handle; may be null
+     */
+    IntBatch forInts(MethodHandles.Lookup lookup, MethodHandle target) {
+        return new IntBatch(lambdafy(lookup, target, IntUnaryOperator.class));
+    }
+
+    LongBatch forLongs(MethodHandle target) {
+        return forLongs(null, target);
+    }
+
+    /**
+     * @param lookup Reveals the target if it's a direct handle; may be null
+     */
+    LongBatch forLongs(MethodHandles.Lookup lookup, MethodHandle target) {
+        return new LongBatch(lambdafy(lookup, target, LongUnaryOperator.class));
+    }
+
+    DoubleBatch forDoubles(MethodHandle target) {
+        return forDoubles(null, target);
+    }
+
+    /**
+     * @param lookup Reveals the target if it's a direct handle; may be null
+     */
+    DoubleBatch forDoubles(MethodHandles.Lookup lookup, MethodHandle target) {
+        return new DoubleBatch(lambdafy(lookup, target, DoubleUnaryOperator.class));
+    }
+
+    private static <T> T lambdafy(MethodHandles.Lookup lookup, MethodHandle target, Class<T> functionalInterface) {
+        if (lookup != null) {
+            try {
+                lookup.revealDirect(target);
+                return Methods.lambdafy(lookup, target, functionalInterface);
+            } catch (IllegalArgumentException ex) {
+                // Not a direct handle
+            }
+        }
+        return Lambdas.lambdafy(target, functionalInterface);
+    }
+
+    /**
+     * The chunk size for an array of that length, or 0 if it should be processed sequentially.
+     */
+    private int chunkSizeFor(int length) {
+        int parallelism = pool.getParallelism();
+        if (length <= threshold || parallelism == 1) {
+            return 0;
+        }
+        return Math.max(threshold, length / (parallelism * CHUNKS_PER_WORKER));
+    }
+
+    private static void checkLengths(int input, int output) {
+        if (output < input) {
+            throw new IllegalArgumentException("Output of length " + output + " is shorter than input of length " + input);
+        }
+    }
+
+    final class IntBatch {
+        private final IntUnaryOperator operator;
+
+        private IntBatch(IntUnaryOperator operator) {
+            this.operator = operator;
+        }
+
+        /**
+         * Writes the results for all elements of the input into the output, which may be the same array.
+         */
+        void apply(int[] input, int[] output) {
+            checkLengths(input.length, output.length);
+            int chunk = chunkSizeFor(input.length);
+            if (chunk == 0) {
+                loop(operator, input, output, 0, input.length);
+            } else {
+                pool.invoke(new Task(input, output, 0, input.length, chunk));
+            }
+        }
+
+        private final class Task extends RecursiveAction {
+            private final int[] input;
+            private final int[] output;
+            private final int from;
+            private final int to;
+            private final int chunk;
+
+            Task(int[] input, int[] output, int from, int to, int chunk) {
+                this.input = input;
+                this.output = output;
+                this.from = from;
+                this.to = to;
+                this.chunk = chunk;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from <= chunk) {
+                    loop(operator, input, output, from, to);
+                    return;
+                }
+                int middle = (from + to) >>> 1;
+                invokeAll(new Task(input, output, from, middle, chunk), new Task(input, output, middle, to, chunk));
+            }
+        }
+    }
+
+    private static void loop(IntUnaryOperator operator, int[] input, int[] output, int from, int to) {
+        for (int i = from; i < to; i++) {
+            output[i] = operator.applyAsInt(input[i]);
+        }
+    }
+
+    final class LongBatch {
+        private final LongUnaryOperator operator;
+
+        private LongBatch(LongUnaryOperator operator) {
+            this.operator = operator;
+        }
+
+        /**
+         * Writes the results for all elements of the input into the output, which may be the same array.
+         */
+        void apply(long[] input, long[] output) {
+            checkLengths(input.length, output.length);
+            int chunk = chunkSizeFor(input.length);
+            if (chunk == 0) {
+                loop(operator, input, output, 0, input.length);
+            } else {
+                pool.invoke(new Task(input, output, 0, input.length, chunk));
+            }
+        }
+
+        private final class Task extends RecursiveAction {
+            private final long[] input;
+            private final long[] output;
+            private final int from;
+            private final int to;
+            private final int chunk;
+
+            Task(long[] input, long[] output, int from, int to, int chunk) {
+                this.input = input;
+                this.output = output;
+                this.from = from;
+                this.to = to;
+                this.chunk = chunk;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from <= chunk) {
+                    loop(operator, input, output, from, to);
+                    return;
+                }
+                int middle = (from + to) >>> 1;
+                invokeAll(new Task(input, output, from, middle, chunk), new Task(input, output, middle, to, chunk));
+            }
+        }
+    }
+
+    private static void loop(LongUnaryOperator operator, long[] input, long[] output, int from, int to) {
+        for (int i = from; i < to; i++) {
+            output[i] = operator.applyAsLong(input[i]);
+        }
+    }
+
+    final class DoubleBatch {
+        private final DoubleUnaryOperator operator;
+
+        private DoubleBatch(DoubleUnaryOperator operator) {
+            this.operator = operator;
+        }
+
+        /**
+         * Writes the results for all elements of the input into the output, which may be the same array.
+         */
+        void apply(double[] input, double[] output) {
+            checkLengths(input.length, output.length);
+            int chunk = chunkSizeFor(input.length);
+            if (chunk == 0) {
+                loop(operator, input, output, 0, input.length);
+            } else {
+                pool.invoke(new Task(input, output, 0, input.length, chunk));
+            }
+        }
+
+        private final class Task extends RecursiveAction {
+            private final double[] input;
+            private final double[] output;
+            private final int from;
+            private final int to;
+            private final int chunk;
+
+            Task(double[] input, double[] output, int from, int to, int chunk) {
+                this.input = input;
+                this.output = output;
+                this.from = from;
+                this.to = to;
+                this.chunk = chunk;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from <= chunk) {
+                    loop(operator, input, output, from, to);
+                    return;
+                }
+                int middle = (from + to) >>> 1;
+                invokeAll(new Task(input, output, from, middle, chunk), new Task(input, output, middle, to, chunk));
+            }
+        }
+    }
+
+    private static void loop(DoubleUnaryOperator operator, double[] input, double[] output, int from, int to) {
+        for (int i = from; i < to; i++) {
+            output[i] = operator.applyAsDouble(input[i]);
+        }
+    }
+}
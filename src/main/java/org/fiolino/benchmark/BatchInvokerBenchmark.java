@@ -0,0 +1,151 @@
+package org.fiolino.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntUnaryOperator;
+
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Applies a handle to arrays of different sizes with BatchInvoker, on pools of different parallelism.
+ *
+ * testSequential never splits. testParallel has a threshold of one, so it splits every array into chunks of
+ * length / (4 * parallelism), except with a parallelism of one, where it doesn't split at all; the size where
+ * testParallel gets faster is the crossover point for that parallelism. testDefaultThreshold uses
+ * BatchInvoker.DEFAULT_THRESHOLD, and testLoop calls a lambdafied IntUnaryOperator per element, as the baseline.
+ * testDoubles is the same as testDefaultThreshold for a double[]. All of them pass a lookup, so that the direct
+ * handle gets lambdafied by Methods; testSequentialLambdas doesn't, and gets a lambda from Lambdas instead.
+ *
+ * Only the benchmarks with a Pool state run with each parallelism; the sequential ones don't need any pool.
+ * They don't allocate anything either, while the parallel runs do, for their fork/join tasks.
+ *
+ * The pool's parallelism is independent of the available cores, so values above their number only add overhead.
+ *
+ * Created by kuli on 17.10.26.
+ */
+@BenchmarkMode(Mode.AverageTime) @Warmup(iterations = 5) @Fork(value = 1) @OutputTimeUnit(TimeUnit.MICROSECONDS) @Measurement(iterations = 10)
+@State(Scope.Benchmark)
+public class BatchInvokerBenchmark {
+
+    private static final MethodHandle INT_OPERATION;
+    private static final MethodHandle DOUBLE_OPERATION;
+    private static final IntUnaryOperator INT_LAMBDA;
+
+    static {
+        try {
+            INT_OPERATION = lookup().findStatic(BatchInvokerBenchmark.class, "mix", methodType(int.class, int.class));
+            DOUBLE_OPERATION = lookup().findStatic(BatchInvokerBenchmark.class, "norm", methodType(double.class, double.class));
+        } catch (IllegalAccessException | NoSuchMethodException ex) {
+            throw new AssertionError(ex);
+        }
+        INT_LAMBDA = Lambdas.lambdafy(INT_OPERATION, IntUnaryOperator.class);
+    }
+
+    static int mix(int x) {
+        x *= 0x9E3779B9;
+        x ^= x >>> 15;
+        x *= 0x85EBCA6B;
+        return x ^ (x >>> 13);
+    }
+
+    static double norm(double x) {
+        return Math.sqrt(x * x + 1.0);
+    }
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int size;
+
+    private int[] ints;
+    private int[] intResults;
+    private double[] doubles;
+    private double[] doubleResults;
+    private BatchInvoker.IntBatch sequential;
+    private BatchInvoker.IntBatch sequentialLambdas;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        ints = new int[size];
+        doubles = new double[size];
+        for (int i=0; i < size; i++) {
+            ints[i] = random.nextInt();
+            doubles[i] = random.nextDouble();
+        }
+        intResults = new int[size];
+        doubleResults = new double[size];
+        BatchInvoker sequentialInvoker = new BatchInvoker(ForkJoinPool.commonPool(), Integer.MAX_VALUE);
+        sequential = sequentialInvoker.forInts(lookup(), INT_OPERATION);
+        sequentialLambdas = sequentialInvoker.forInts(INT_OPERATION);
+    }
+
+    /**
+     * The fork/join pool and the batches that run on it.
+     */
+    @State(Scope.Benchmark)
+    public static class Pool {
+        @Param({"1", "2", "4", "8"})
+        public int parallelism;
+
+        private ForkJoinPool pool;
+        private BatchInvoker.IntBatch parallel;
+        private BatchInvoker.IntBatch defaultThreshold;
+        private BatchInvoker.DoubleBatch doubleBatch;
+
+        @Setup
+        public void setup() {
+            pool = new ForkJoinPool(parallelism);
+            parallel = new BatchInvoker(pool, 1).forInts(lookup(), INT_OPERATION);
+            BatchInvoker invoker = new BatchInvoker(pool, BatchInvoker.DEFAULT_THRESHOLD);
+            defaultThreshold = invoker.forInts(lookup(), INT_OPERATION);
+            doubleBatch = invoker.forDoubles(lookup(), DOUBLE_OPERATION);
+        }
+
+        @TearDown
+        public void shutdown() {
+            pool.shutdown();
+        }
+    }
+
+    @Benchmark @AllocationFree
+    public int[] testLoop() {
+        for (int i=0; i < size; i++) {
+            intResults[i] = INT_LAMBDA.applyAsInt(ints[i]);
+        }
+        return intResults;
+    }
+
+    @Benchmark @AllocationFree
+    public int[] testSequential() {
+        sequential.apply(ints, intResults);
+        return intResults;
+    }
+
+    @Benchmark @AllocationFree
+    public int[] testSequentialLambdas() {
+        sequentialLambdas.apply(ints, intResults);
+        return intResults;
+    }
+
+    @Benchmark
+    public int[] testParallel(Pool pool) {
+        pool.parallel.apply(ints, intResults);
+        return intResults;
+    }
+
+    @Benchmark
+    public int[] testDefaultThreshold(Pool pool) {
+        pool.defaultThreshold.apply(ints, intResults);
+        return intResults;
+    }
+
+    @Benchmark
+    public double[] testDoubles(Pool pool) {
+        pool.doubleBatch.apply(doubles, doubleResults);
+        return doubleResults;
+    }
+}
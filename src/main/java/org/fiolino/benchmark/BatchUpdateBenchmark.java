@@ -0,0 +1,101 @@
+package org.fiolino.benchmark;
+
+import org.fiolino.common.reflection.AlmostFinal;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Updating many almost final values at once while readers are summing some of them up in hot loops.
+ *
+ * The "sequential" group calls AlmostFinal.updateTo() for 1, 10 or 100 values in a row, the "batch" group
+ * commits the same number of changes in one AlmostFinalGroup transaction. The writer pauses after each update,
+ * like a configuration reload would; the readers' score shows how much they suffer from the updates.
+ *
+ * Created by kuli on 17.10.26.
+ */
+@BenchmarkMode(Mode.AverageTime) @Warmup(iterations = 5) @Fork(value = 1) @OutputTimeUnit(TimeUnit.MICROSECONDS) @Measurement(iterations = 10)
+@State(Scope.Group)
+public class BatchUpdateBenchmark {
+
+    private static final int SWITCHES = 100;
+
+    @SuppressWarnings("unchecked")
+    private static final AlmostFinal<Integer>[] ALMOST_FINALS = new AlmostFinal[SWITCHES];
+    private static final AlmostFinalGroup GROUP = new AlmostFinalGroup();
+    @SuppressWarnings("unchecked")
+    private static final AlmostFinalGroup.Value<Integer>[] GROUP_VALUES = new AlmostFinalGroup.Value[SWITCHES];
+
+    static {
+        for (int i = 0; i < SWITCHES; i++) {
+            ALMOST_FINALS[i] = AlmostFinal.forInt(2);
+            GROUP_VALUES[i] = GROUP.forInt(2);
+        }
+    }
+
+    private static final MethodHandle GETTER_1 = ALMOST_FINALS[0].createGetter();
+    private static final MethodHandle GETTER_2 = ALMOST_FINALS[1].createGetter();
+    private static final MethodHandle GROUP_GETTER_1 = GROUP_VALUES[0].createGetter();
+    private static final MethodHandle GROUP_GETTER_2 = GROUP_VALUES[1].createGetter();
+
+    @Param({"1", "10", "100"})
+    public int count;
+
+    /**
+     * Pause of the writer after each update, to give the readers time to get compiled again.
+     */
+    @Param({"10"})
+    public int pauseMillis;
+
+    private int nextValue = 3;
+
+    private int nextValue() {
+        int v = nextValue;
+        nextValue = v == 2 ? 3 : 2;
+        return v;
+    }
+
+    @Benchmark
+    @Group("sequential") @GroupThreads(1)
+    public void updateSequentially() throws InterruptedException {
+        int v = nextValue();
+        for (int i = 0; i < count; i++) {
+            ALMOST_FINALS[i].updateTo(v);
+        }
+        TimeUnit.MILLISECONDS.sleep(pauseMillis);
+    }
+
+    @Benchmark
+    @Group("sequential") @GroupThreads(3)
+    public void readSequentiallyUpdated(Blackhole blackhole) throws Throwable {
+        int sum = 0;
+        for (int i=0; i < 10_000; i++) {
+            sum += (int) GETTER_1.invokeExact() + (int) GETTER_2.invokeExact();
+        }
+        blackhole.consume(sum);
+    }
+
+    @Benchmark
+    @Group("batch") @GroupThreads(1)
+    public void updateInBatch() throws InterruptedException {
+        int v = nextValue();
+        AlmostFinalGroup.Transaction tx = GROUP.begin();
+        for (int i = 0; i < count; i++) {
+            tx.set(GROUP_VALUES[i], v);
+        }
+        tx.commit();
+        TimeUnit.MILLISECONDS.sleep(pauseMillis);
+    }
+
+    @Benchmark
+    @Group("batch") @GroupThreads(3)
+    public void readBatchUpdated(Blackhole blackhole) throws Throwable {
+        int sum = 0;
+        for (int i=0; i < 10_000; i++) {
+            sum += (int) GROUP_GETTER_1.invokeExact() + (int) GROUP_GETTER_2.invokeExact();
+        }
+        blackhole.consume(sum);
+    }
+}
@@ -0,0 +1,340 @@
+package org.fiolino.benchmark;
+
+import org.fiolino.benchmark.BenchmarkProfile.JvmVariant;
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.BenchmarkResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatFactory;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.BenchmarkList;
+import org.openjdk.jmh.runner.BenchmarkListEntry;
+import org.openjdk.jmh.runner.Defaults;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.format.OutputFormat;
+import org.openjdk.jmh.runner.format.OutputFormatFactory;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.ProfilerConfig;
+import org.openjdk.jmh.runner.options.VerboseMode;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Entry point of the benchmarks jar.
+ *
+ * Accepts the same command line as JMH's own Main, but always runs with the GC profiler, unless
+ * -Dbenchmark.gc=false is given. After the run, it prints time and allocated bytes per operation side by side,
+ * and exits with 1 if any benchmark marked with @AllocationFree has allocated memory.
+ *
+ * Unless a result file or format is given explicitly, every run writes its JSON result into the directory named by
+ * -Dbenchmark.history (default: history), named by its start time. ResultComparator diffs two of these files.
+ * An empty value switches the history off.
+ *
+ * With -Dbenchmark.profile=quick|ci|rigorous, forks and iterations come from a BenchmarkProfile instead of the
+ * annotations. The rigorous profile runs everything once per JVM variant and writes one result file per variant.
+ * The summary shows the variation between forks, which tells whether a difference between two strategies is real.
+ *
+ * Created by kuli on 17.10.26.
+ */
+public final class BenchmarkMain {
+
+    /**
+     * Allocations below this number of bytes per operation are considered as noise.
+     */
+    private static final double ALLOCATION_TOLERANCE = 1.0;
+
+    /**
+     * JMH's own threads allocate about a kilobyte per second, which adds several bytes to operations that take
+     * milliseconds. So allocation rates below this number of MB/sec are considered as noise as well.
+     */
+    private static final double ALLOCATION_RATE_TOLERANCE = 0.01;
+
+    private static final String ALLOCATION_RESULT = "gc.alloc.rate.norm";
+
+    private static final String ALLOCATION_RATE_RESULT = "gc.alloc.rate";
+
+    private static final String DEFAULT_HISTORY = "history";
+
+    private BenchmarkMain() {
+        throw new AssertionError("Static class");
+    }
+
+    public static void main(String[] args) throws RunnerException, IOException {
+        CommandLineOptions cmdOptions;
+        try {
+            cmdOptions = new CommandLineOptions(args);
+        } catch (CommandLineOptionException ex) {
+            System.err.println("Error parsing command line:");
+            System.err.println(" " + ex.getMessage());
+            System.exit(1);
+            return;
+        }
+        if (cmdOptions.shouldHelp() || cmdOptions.shouldList() || cmdOptions.shouldListWithParams()
+                || cmdOptions.shouldListProfilers() || cmdOptions.shouldListResultFormats()) {
+            Main.main(args);
+            return;
+        }
+
+        BenchmarkProfile profile;
+        try {
+            profile = BenchmarkProfile.fromSystemProperty();
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.exit(1);
+            return;
+        }
+        ResultFormatType resultFormat = cmdOptions.getResultFormat().orElse(
+                cmdOptions.getResult().hasValue() ? Defaults.RESULT_FORMAT : ResultFormatType.JSON);
+        String resultFile = resultFileOf(cmdOptions, resultFormat);
+        List<JvmVariant> variants = profile == null ? Collections.singletonList(JvmVariant.DEFAULT)
+                : profile.variants(BenchmarkProfile.jvmOf(cmdOptions));
+
+        List<String> violations = new ArrayList<>();
+        for (JvmVariant variant : variants) {
+            String file = resultFile == null || variants.size() == 1 ? resultFile : withSuffix(resultFile, variant.name);
+            Collection<RunResult> results = run(cmdOptions, profile, variant, resultFormat, file);
+            if (variants.size() > 1) {
+                System.out.println();
+                System.out.println("JVM variant " + variant);
+            }
+            printSummary(results);
+            violations.addAll(findAllocations(results));
+        }
+        if (violations.isEmpty()) {
+            return;
+        }
+        System.err.println();
+        for (String v : violations) {
+            System.err.println(v);
+        }
+        System.exit(1);
+    }
+
+    /**
+     * Runs all benchmarks with the given variant's JVM flags.
+     *
+     * With a profile, steady state and single shot benchmarks run separately, since the profile treats them
+     * differently; their results then get written into one file.
+     */
+    private static Collection<RunResult> run(CommandLineOptions cmdOptions, BenchmarkProfile profile, JvmVariant variant,
+                                             ResultFormatType resultFormat, String resultFile) throws RunnerException {
+        if (profile == null) {
+            return new Runner(optionsFor(cmdOptions, variant, resultFormat, resultFile).build()).run();
+        }
+        Set<String> steadyState = new HashSet<>();
+        Set<String> singleShot = new HashSet<>();
+        splitByMode(cmdOptions, steadyState, singleShot);
+
+        List<RunResult> results = new ArrayList<>();
+        if (!steadyState.isEmpty() || singleShot.isEmpty()) {
+            ChainedOptionsBuilder builder = optionsFor(cmdOptions, variant, resultFormat, resultFile);
+            profile.apply(cmdOptions, builder, false);
+            excludeAll(builder, singleShot);
+            results.addAll(new Runner(builder.build()).run());
+        }
+        if (!singleShot.isEmpty()) {
+            ChainedOptionsBuilder builder = optionsFor(cmdOptions, variant, resultFormat, resultFile);
+            profile.apply(cmdOptions, builder, true);
+            excludeAll(builder, steadyState);
+            results.addAll(new Runner(builder.build()).run());
+        }
+        if (resultFile != null && !steadyState.isEmpty() && !singleShot.isEmpty()) {
+            ResultFormatFactory.getInstance(resultFormat, resultFile).writeOut(results);
+        }
+        return results;
+    }
+
+    private static ChainedOptionsBuilder optionsFor(CommandLineOptions cmdOptions, JvmVariant variant,
+                                                    ResultFormatType resultFormat, String resultFile) {
+        ChainedOptionsBuilder builder = new OptionsBuilder().parent(cmdOptions);
+        if (Boolean.parseBoolean(System.getProperty("benchmark.gc", "true")) && !hasGCProfiler(cmdOptions)) {
+            builder.addProfiler(GCProfiler.class);
+        }
+        variant.apply(cmdOptions, builder);
+        if (resultFile != null) {
+            builder.resultFormat(resultFormat).result(resultFile);
+        }
+        return builder;
+    }
+
+    /**
+     * Sorts all selected benchmarks into those that only run as single shots, and all others.
+     */
+    private static void splitByMode(CommandLineOptions options, Set<String> steadyState, Set<String> singleShot) {
+        List<String> includes = options.getIncludes().isEmpty() ? Collections.singletonList(".*") : options.getIncludes();
+        OutputFormat silent = OutputFormatFactory.createFormatInstance(System.out, VerboseMode.SILENT);
+        Collection<Mode> modes = options.getBenchModes();
+        for (BenchmarkListEntry e : BenchmarkList.defaultList().find(silent, includes, options.getExcludes())) {
+            boolean isSingleShot = modes.isEmpty() ? e.getMode() == Mode.SingleShotTime
+                    : modes.size() == 1 && modes.contains(Mode.SingleShotTime);
+            (isSingleShot ? singleShot : steadyState).add(e.getUsername());
+        }
+        singleShot.removeAll(steadyState);
+    }
+
+    static void excludeAll(ChainedOptionsBuilder builder, Collection<String> benchmarks) {
+        for (String b : benchmarks) {
+            builder.exclude("^" + Pattern.quote(b) + "$");
+        }
+    }
+
+    /**
+     * The file to write the results into: either the one from the command line, or a new one in the history
+     * directory, or null if there is none. Creates its directory, which JMH doesn't, so that results can be
+     * collected in a directory per benchmark suite.
+     */
+    private static String resultFileOf(CommandLineOptions options, ResultFormatType resultFormat) throws IOException {
+        File file;
+        if (options.getResult().hasValue()) {
+            file = new File(options.getResult().get());
+        } else if (options.getResultFormat().hasValue()) {
+            file = new File(Defaults.RESULT_FILE_PREFIX + "." + resultFormat.toString().toLowerCase(Locale.ROOT));
+        } else {
+            String history = System.getProperty("benchmark.history", DEFAULT_HISTORY);
+            if (history.isEmpty()) {
+                return null;
+            }
+            file = new File(history, new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.ROOT).format(new Date()) + ".json");
+        }
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create " + parent);
+        }
+        return file.getPath();
+    }
+
+    private static String withSuffix(String file, String suffix) {
+        int dot = file.lastIndexOf('.');
+        if (dot <= file.lastIndexOf(File.separatorChar)) {
+            return file + "-" + suffix;
+        }
+        return file.substring(0, dot) + "-" + suffix + file.substring(dot);
+    }
+
+    private static boolean hasGCProfiler(CommandLineOptions options) {
+        for (ProfilerConfig p : options.getProfilers()) {
+            if ("gc".equals(p.getKlass()) || GCProfiler.class.getName().equals(p.getKlass())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void printSummary(Collection<RunResult> results) {
+        System.out.println();
+        System.out.println(String.format(Locale.ROOT, "%-80s %14s %-8s %14s %6s %10s", "Benchmark", "Score", "Units",
+                "Alloc B/op", "Forks", "Fork CV %"));
+        for (RunResult r : results) {
+            Result primary = r.getPrimaryResult();
+            double allocated = allocatedBytes(r);
+            double variation = forkVariation(r);
+            System.out.println(String.format(Locale.ROOT, "%-80s %14.3f %-8s %14s %6d %10s", labelOf(r.getParams()),
+                    primary.getScore(), primary.getScoreUnit(),
+                    Double.isNaN(allocated) ? "-" : String.format(Locale.ROOT, "%.1f", allocated),
+                    r.getBenchmarkResults().size(),
+                    Double.isNaN(variation) ? "-" : String.format(Locale.ROOT, "%.1f", variation)));
+        }
+    }
+
+    /**
+     * The coefficient of variation between the forks' scores in percent, or NaN if there was only one fork.
+     *
+     * A high value means that the score depends on the JIT's decisions in each JVM, not only on the code.
+     */
+    static double forkVariation(RunResult r) {
+        Collection<BenchmarkResult> forks = r.getBenchmarkResults();
+        int n = forks.size();
+        if (n < 2) {
+            return Double.NaN;
+        }
+        double sum = 0.0;
+        for (BenchmarkResult f : forks) {
+            sum += f.getPrimaryResult().getScore();
+        }
+        double mean = sum / n;
+        double squares = 0.0;
+        for (BenchmarkResult f : forks) {
+            double d = f.getPrimaryResult().getScore() - mean;
+            squares += d * d;
+        }
+        return Math.sqrt(squares / (n - 1)) / mean * 100.0;
+    }
+
+    /**
+     * The benchmark name including its parameters.
+     */
+    static String labelOf(BenchmarkParams params) {
+        StringBuilder sb = new StringBuilder(params.getBenchmark());
+        String sep = ":";
+        for (String key : params.getParamsKeys()) {
+            sb.append(sep).append(key).append('=').append(params.getParam(key));
+            sep = ",";
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Bytes per operation as measured by the GC profiler, or NaN if it didn't run.
+     */
+    static double allocatedBytes(RunResult r) {
+        return secondaryScore(r, ALLOCATION_RESULT);
+    }
+
+    private static double secondaryScore(RunResult r, String label) {
+        for (Result<?> secondary : r.getSecondaryResults().values()) {
+            if (secondary.getLabel().endsWith(label)) {
+                return secondary.getScore();
+            }
+        }
+        return Double.NaN;
+    }
+
+    private static List<String> findAllocations(Collection<RunResult> results) {
+        List<String> violations = new ArrayList<>();
+        for (RunResult r : results) {
+            double allocated = allocatedBytes(r);
+            if (allocated > ALLOCATION_TOLERANCE && !(secondaryScore(r, ALLOCATION_RATE_RESULT) < ALLOCATION_RATE_TOLERANCE)
+                    && isAllocationFree(r.getParams().getBenchmark())) {
+                violations.add(String.format(Locale.ROOT, "%s should not allocate, but allocated %.1f bytes/op",
+                        labelOf(r.getParams()), allocated));
+            }
+        }
+        return violations;
+    }
+
+    private static boolean isAllocationFree(String benchmark) {
+        int dot = benchmark.lastIndexOf('.');
+        String methodName = benchmark.substring(dot + 1);
+        Class<?> benchmarkClass;
+        try {
+            benchmarkClass = Class.forName(benchmark.substring(0, dot), false, BenchmarkMain.class.getClassLoader());
+        } catch (ClassNotFoundException ex) {
+            return false;
+        }
+        for (Method m : benchmarkClass.getMethods()) {
+            if (m.getName().equals(methodName) && m.isAnnotationPresent(AllocationFree.class)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
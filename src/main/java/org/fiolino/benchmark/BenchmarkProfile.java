@@ -0,0 +1,195 @@
+package org.fiolino.benchmark;
+
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Named run configurations, selected with -Dbenchmark.profile=quick|ci|rigorous.
+ *
+ * A profile replaces the forks, iterations and iteration times of the benchmark annotations, unless they are given
+ * on the command line. Single shot benchmarks only get their number of forks changed, since more warmup iterations
+ * would make them measure something else than a cold start.
+ *
+ * The rigorous profile additionally runs everything once per JVM variant: the default C2, with tiered compilation
+ * switched off, with a smaller and a larger MaxInlineSize, and with Graal if the JVM supports it.
+ *
+ * Created by kuli on 17.10.26.
+ */
+enum BenchmarkProfile {
+    QUICK(1, 3, 5, 5, JvmVariant.DEFAULT),
+    CI(3, 5, 5, 10, JvmVariant.DEFAULT),
+    RIGOROUS(5, 10, 10, 30, JvmVariant.DEFAULT,
+            new JvmVariant("tiered-off", "-XX:-TieredCompilation"),
+            new JvmVariant("inline-18", "-XX:MaxInlineSize=18"),
+            new JvmVariant("inline-70", "-XX:MaxInlineSize=70"),
+            new JvmVariant("graal", "-XX:+UnlockExperimentalVMOptions", "-XX:+EnableJVMCI", "-XX:+UseJVMCICompiler")
+                    .probedWith("-XX:+BootstrapJVMCI"));
+
+    private static final TimeValue ITERATION_TIME = TimeValue.seconds(1);
+
+    private final int forks;
+    private final int warmupIterations;
+    private final int measurementIterations;
+    private final int singleShotForks;
+    private final List<JvmVariant> variants;
+
+    BenchmarkProfile(int forks, int warmupIterations, int measurementIterations, int singleShotForks,
+                     JvmVariant... variants) {
+        this.forks = forks;
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = measurementIterations;
+        this.singleShotForks = singleShotForks;
+        this.variants = Arrays.asList(variants);
+    }
+
+    /**
+     * The profile named by -Dbenchmark.profile, or null if none is given.
+     */
+    static BenchmarkProfile fromSystemProperty() {
+        String name = System.getProperty("benchmark.profile");
+        if (name == null || name.isEmpty()) {
+            return null;
+        }
+        try {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Unknown benchmark profile " + name + ", expected one of "
+                    + Arrays.toString(values()).toLowerCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * Sets this profile's values on the builder, as far as the command line doesn't specify them.
+     */
+    void apply(Options commandLine, ChainedOptionsBuilder builder, boolean singleShot) {
+        if (!commandLine.getForkCount().hasValue()) {
+            builder.forks(singleShot ? singleShotForks : forks);
+        }
+        if (singleShot) {
+            return;
+        }
+        if (!commandLine.getWarmupIterations().hasValue()) {
+            builder.warmupIterations(warmupIterations);
+        }
+        if (!commandLine.getWarmupTime().hasValue()) {
+            builder.warmupTime(ITERATION_TIME);
+        }
+        if (!commandLine.getMeasurementIterations().hasValue()) {
+            builder.measurementIterations(measurementIterations);
+        }
+        if (!commandLine.getMeasurementTime().hasValue()) {
+            builder.measurementTime(ITERATION_TIME);
+        }
+    }
+
+    /**
+     * All JVM variants of this profile that the given JVM can start with.
+     */
+    List<JvmVariant> variants(String jvm) {
+        List<JvmVariant> supported = new ArrayList<>(variants.size());
+        for (JvmVariant v : variants) {
+            if (v.isSupportedBy(jvm)) {
+                supported.add(v);
+            } else {
+                System.err.println("Skipping JVM variant " + v.name + ", not supported by " + jvm);
+            }
+        }
+        return supported;
+    }
+
+    /**
+     * The JVM that runs the forks, as JMH determines it.
+     */
+    static String jvmOf(Options options) {
+        return options.getJvm().orElse(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+    }
+
+    /**
+     * A set of JVM flags appended to every fork.
+     */
+    static final class JvmVariant {
+        static final JvmVariant DEFAULT = new JvmVariant("c2");
+
+        final String name;
+        final List<String> flags;
+        private final List<String> probeFlags;
+
+        JvmVariant(String name, String... flags) {
+            this(name, Arrays.asList(flags), Collections.<String>emptyList());
+        }
+
+        private JvmVariant(String name, List<String> flags, List<String> probeFlags) {
+            this.name = name;
+            this.flags = Collections.unmodifiableList(flags);
+            this.probeFlags = probeFlags;
+        }
+
+        /**
+         * Adds flags to the support check only. A JVM may accept a flag with -version, and fail later when it
+         * actually needs it; JVMCI without a compiler does that.
+         */
+        JvmVariant probedWith(String... extraFlags) {
+            return new JvmVariant(name, flags, Arrays.asList(extraFlags));
+        }
+
+        /**
+         * Appends the flags to those from the command line; JMH would replace them otherwise.
+         */
+        void apply(Options commandLine, ChainedOptionsBuilder builder, String... extraFlags) {
+            if (flags.isEmpty() && extraFlags.length == 0) {
+                return;
+            }
+            List<String> all = new ArrayList<>(commandLine.getJvmArgsAppend().orElse(Collections.<String>emptyList()));
+            all.addAll(flags);
+            all.addAll(Arrays.asList(extraFlags));
+            builder.jvmArgsAppend(all.toArray(new String[all.size()]));
+        }
+
+        /**
+         * Starts the JVM with -version to see whether it accepts the flags.
+         */
+        boolean isSupportedBy(String jvm) {
+            if (flags.isEmpty()) {
+                return true;
+            }
+            List<String> command = new ArrayList<>(flags.size() + probeFlags.size() + 2);
+            command.add(jvm);
+            command.addAll(flags);
+            command.addAll(probeFlags);
+            command.add("-version");
+            try {
+                Process process = new ProcessBuilder(command).redirectErrorStream(true)
+                        .redirectOutput(new File(nullDevice())).start();
+                if (!process.waitFor(2, TimeUnit.MINUTES)) {
+                    process.destroy();
+                    return false;
+                }
+                return process.exitValue() == 0;
+            } catch (IOException ex) {
+                return false;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        private static String nullDevice() {
+            return System.getProperty("os.name").startsWith("Windows") ? "NUL" : "/dev/null";
+        }
+
+        @Override
+        public String toString() {
+            return name + flags;
+        }
+    }
+}
@@ -67,7 +67,7 @@ public class BooleanBenchmark {
         blackhole.consume(count);
     }
 
-    @Benchmark
+    @Benchmark @AllocationFree
     public void testAlmostFinalHandle(Blackhole blackhole) throws Throwable {
         int count = 0;
         for (int i=0; i < 10_000; i++) {
@@ -0,0 +1,164 @@
+package org.fiolino.benchmark;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A registry that caches the results of a handle with one parameter per argument, but only up to a maximum
+ * number of entries.
+ *
+ * Lookups only read a ConcurrentHashMap and mark the entry as referenced, so hits never lock. New entries go
+ * into one of several stripes, each of them a ring with its own lock. When a ring is full, its clock hand
+ * evicts the next entry that wasn't referenced since the hand passed it the last time, which approximates
+ * least recently used eviction. The stripes' capacities add up to the maximum size, so the registry never holds
+ * more entries, except for the moment when one gets replaced. Since keys don't spread evenly, a stripe may start
+ * evicting before the registry is full.
+ *
+ * The target is called outside of any lock; if two threads miss the same key at the same time, both compute
+ * it. So the target should be free of side effects.
+ *
+ * Created by kuli on 17.10.26.
+ */
+final class BoundedRegistry {
+
+    private static final Object NULL = new Object();
+
+    private static final MethodHandle GET;
+
+    static {
+        try {
+            GET = MethodHandles.lookup().findVirtual(BoundedRegistry.class, "get", MethodType.methodType(Object.class, Object.class));
+        } catch (NoSuchMethodException | IllegalAccessException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    private final MethodHandle target;
+    private final MethodType type;
+    private final ConcurrentHashMap<Object, Entry> entries;
+    private final Stripe[] stripes;
+    private final int mask;
+    private InvocationMetrics metrics = InvocationMetrics.NONE;
+
+    BoundedRegistry(MethodHandle target, int maximumSize) {
+        this(target, maximumSize, Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    BoundedRegistry(MethodHandle target, int maximumSize, int concurrency) {
+        type = target.type();
+        if (type.parameterCount() != 1) {
+            throw new IllegalArgumentException(target + " must have exactly one parameter");
+        }
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("Maximum size must be positive: " + maximumSize);
+        }
+        this.target = target.asType(MethodType.methodType(Object.class, Object.class));
+        // Never more stripes than entries, so that each one holds at least one, and their sum is the maximum size
+        int n = Integer.highestOneBit(Math.max(1, Math.min(concurrency, maximumSize)));
+        entries = new ConcurrentHashMap<>(maximumSize * 4 / 3 + 1, 0.75f, n);
+        stripes = new Stripe[n];
+        mask = n - 1;
+        int perStripe = maximumSize / n;
+        int larger = maximumSize % n;
+        for (int i = 0; i < n; i++) {
+            stripes[i] = new Stripe(i < larger ? perStripe + 1 : perStripe);
+        }
+    }
+
+    /**
+     * Creates a handle of the same type as the target, which returns the cached value for its argument.
+     */
+    MethodHandle getAccessor() {
+        return GET.bindTo(this).asType(type);
+    }
+
+    /**
+     * Counts hits, misses and the target's execution times under the given name; see InvocationMetrics.
+     */
+    BoundedRegistry withMetrics(String name) {
+        metrics = InvocationMetrics.named(name);
+        return this;
+    }
+
+    /**
+     * The current number of cached entries.
+     */
+    int size() {
+        return entries.size();
+    }
+
+    private Object get(Object key) throws Throwable {
+        Object k = key == null ? NULL : key;
+        Entry e = entries.get(k);
+        if (e != null) {
+            if (!e.referenced) {
+                e.referenced = true;
+            }
+            if (InvocationMetrics.enabled()) {
+                metrics.hit();
+            }
+            return e.value;
+        }
+        long start = InvocationMetrics.startTiming();
+        Object value = (Object) target.invokeExact(key);
+        metrics.missed(start);
+        stripes[spread(k.hashCode()) & mask].insert(new Entry(k, value));
+        return value;
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Entry {
+        final Object key;
+        final Object value;
+        volatile boolean referenced;
+
+        Entry(Object key, Object value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private final class Stripe {
+        private final Entry[] ring;
+        private int filled;
+        private int hand;
+
+        Stripe(int capacity) {
+            ring = new Entry[capacity];
+        }
+
+        synchronized void insert(Entry e) {
+            if (entries.putIfAbsent(e.key, e) != null) {
+                // Another thread was faster
+                return;
+            }
+            if (filled < ring.length) {
+                ring[filled++] = e;
+                return;
+            }
+            for (;;) {
+                Entry candidate = ring[hand];
+                if (candidate.referenced) {
+                    candidate.referenced = false;
+                    advance();
+                    continue;
+                }
+                entries.remove(candidate.key, candidate);
+                ring[hand] = e;
+                advance();
+                return;
+            }
+        }
+
+        private void advance() {
+            if (++hand == ring.length) {
+                hand = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package org.fiolino.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Looks up random keys through a BoundedRegistry's accessor, compared to an unbounded ConcurrentHashMap.
+ *
+ * The hit ratio of the registry is about maximumSize / cardinality; the map always hits after warmup,
+ * but keeps all keys in memory. Each iteration reports the hits and misses of all threads.
+ *
+ * Created by kuli on 17.10.26.
+ */
+@BenchmarkMode(Mode.AverageTime) @Warmup(iterations = 5) @Fork(value = 1) @OutputTimeUnit(TimeUnit.NANOSECONDS) @Measurement(iterations = 10)
+@State(Scope.Benchmark)
+public class BoundedRegistryBenchmark {
+
+    private static final int KEYS_PER_THREAD = 1 << 16;
+
+    private static final MethodHandle COMPUTE;
+
+    static {
+        try {
+            COMPUTE = lookup().findStatic(BoundedRegistryBenchmark.class, "compute", methodType(Object.class, Object.class));
+        } catch (IllegalAccessException | NoSuchMethodException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    static Object compute(Object key) {
+        HitRatio ratio = HitRatio.CURRENT.get();
+        if (ratio != null) {
+            ratio.misses++;
+        }
+        Blackhole.consumeCPU(100);
+        return key;
+    }
+
+    @Param({"1000", "100000", "1000000"})
+    public int cardinality;
+
+    @Param({"10000"})
+    public int maximumSize;
+
+    private MethodHandle registryAccessor;
+    private ConcurrentHashMap<Object, Object> map;
+
+    @Setup
+    public void setup() {
+        registryAccessor = new BoundedRegistry(COMPUTE, maximumSize).getAccessor();
+        map = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Pre-boxed random keys, so that neither random numbers nor boxing get measured.
+     */
+    @State(Scope.Thread)
+    public static class Keys {
+        private final Integer[] keys = new Integer[KEYS_PER_THREAD];
+        private int index;
+
+        @Setup
+        public void setup(BoundedRegistryBenchmark benchmark) {
+            Random random = new Random(ThreadLocalRandom.current().nextLong());
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = random.nextInt(benchmark.cardinality);
+            }
+        }
+
+        Object next() {
+            return keys[index++ & (KEYS_PER_THREAD - 1)];
+        }
+    }
+
+    /**
+     * Counts the lookups of one thread, and the misses among them, which are the calls to compute().
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class HitRatio {
+        static final ThreadLocal<HitRatio> CURRENT = new ThreadLocal<>();
+
+        /**
+         * Lookups that found their key in this iteration.
+         */
+        public long hits;
+        /**
+         * Lookups that had to compute their key in this iteration.
+         */
+        public long misses;
+
+        private long lookups;
+
+        @Setup(Level.Iteration)
+        public void start() {
+            hits = misses = lookups = 0;
+            CURRENT.set(this);
+        }
+
+        @TearDown(Level.Iteration)
+        public void stop() {
+            hits = lookups - misses;
+            CURRENT.remove();
+        }
+    }
+
+    @Benchmark @Threads(1)
+    public Object testBoundedRegistry(Keys keys, HitRatio ratio) throws Throwable {
+        ratio.lookups++;
+        return (Object) registryAccessor.invokeExact(keys.next());
+    }
+
+    @Benchmark @Threads(8)
+    public Object testBoundedRegistryContended(Keys keys, HitRatio ratio) throws Throwable {
+        ratio.lookups++;
+        return (Object) registryAccessor.invokeExact(keys.next());
+    }
+
+    @Benchmark @Threads(1)
+    public Object testComputeIfAbsent(Keys keys, HitRatio ratio) {
+        ratio.lookups++;
+        return map.computeIfAbsent(keys.next(), BoundedRegistryBenchmark::compute);
+    }
+
+    @Benchmark @Threads(8)
+    public Object testComputeIfAbsentContended(Keys keys, HitRatio ratio) {
+        ratio.lookups++;
+        return map.computeIfAbsent(keys.next(), BoundedRegistryBenchmark::compute);
+    }
+}
@@ -131,7 +131,7 @@ public class CheckBooleanBenchmark {
         blackhole.consume(count);
     }
 
-    @Benchmark
+    @Benchmark @AllocationFree
     public void testAlmostFinalHandle(Blackhole blackhole) throws Throwable {
         int count = 0;
         for (int i=0; i < 10_000; i++) {
@@ -0,0 +1,110 @@
+package org.fiolino.benchmark;
+
+import org.fiolino.common.reflection.AlmostFinal;
+import org.fiolino.common.reflection.Methods;
+import org.fiolino.common.reflection.OneTimeRegistryBuilder;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * The first call of the commons reflection utilities in a fresh JVM, which is what autoscaled services pay at
+ * startup.
+ *
+ * Each benchmark runs exactly once per fork. The costs are broken down into the lookup of the handle
+ * (testLookup), creating the commons objects (testLambdafy, testCreateLambdaFactory, testCreateGetter,
+ * testCreateRegistry) and linking their first invocation (testLink...). testLambdafy and testCreateLambdaFactory
+ * include spinning the lambda class in commons; testCreatePooledLambdaFactory measures the same for the pooled
+ * lambda class of Lambdas, for comparison. Whatever a benchmark doesn't measure itself gets prepared by the Handles and
+ * Created states, which are only set up for the benchmarks that need them.
+ * Run it with the cold-start profile to keep the results over time.
+ *
+ * Created by kuli on 17.10.26.
+ */
+@BenchmarkMode(Mode.SingleShotTime) @Warmup(iterations = 0) @Fork(value = 20) @OutputTimeUnit(TimeUnit.MICROSECONDS) @Measurement(iterations = 1)
+public class ColdStartBenchmark {
+
+    static int returnParameter(int value) {
+        return value;
+    }
+
+    static int getValue() {
+        return 2;
+    }
+
+    @State(Scope.Benchmark)
+    public static class Handles {
+        MethodHandle returnParameter;
+        MethodHandle getValue;
+
+        @Setup(Level.Trial)
+        public void setup() throws IllegalAccessException, NoSuchMethodException {
+            returnParameter = lookup().findStatic(ColdStartBenchmark.class, "returnParameter", methodType(int.class, int.class));
+            getValue = lookup().findStatic(ColdStartBenchmark.class, "getValue", methodType(int.class));
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Created {
+        IntSupplier lambda;
+        MethodHandle getter;
+        MethodHandle accessor;
+
+        @Setup(Level.Trial)
+        public void setup(Handles handles) {
+            lambda = Methods.lambdafy(lookup(), handles.getValue, IntSupplier.class);
+            getter = AlmostFinal.forInt(2).createGetter();
+            accessor = OneTimeRegistryBuilder.createFor(handles.returnParameter).getAccessor();
+        }
+    }
+
+    @Benchmark
+    public MethodHandle testLookup() throws IllegalAccessException, NoSuchMethodException {
+        return lookup().findStatic(ColdStartBenchmark.class, "returnParameter", methodType(int.class, int.class));
+    }
+
+    @Benchmark
+    public MethodHandle testCreatePooledLambdaFactory() {
+        return Lambdas.pooledLambdaFactory(IntSupplier.class);
+    }
+
+    @Benchmark
+    public IntSupplier testLambdafy(Handles handles) {
+        return Methods.lambdafy(lookup(), handles.getValue, IntSupplier.class);
+    }
+
+    @Benchmark
+    public MethodHandle testCreateLambdaFactory(Handles handles) {
+        return Methods.createLambdaFactory(lookup(), handles.returnParameter, IntSupplier.class);
+    }
+
+    @Benchmark
+    public MethodHandle testCreateGetter() {
+        return AlmostFinal.forInt(2).createGetter();
+    }
+
+    @Benchmark
+    public MethodHandle testCreateRegistry(Handles handles) {
+        return OneTimeRegistryBuilder.createFor(handles.returnParameter).getAccessor();
+    }
+
+    @Benchmark
+    public int testLinkLambda(Created created) {
+        return created.lambda.getAsInt();
+    }
+
+    @Benchmark
+    public int testLinkGetter(Created created) throws Throwable {
+        return (int) created.getter.invokeExact();
+    }
+
+    @Benchmark
+    public int testLinkRegistry(Created created) throws Throwable {
+        return (int) created.accessor.invokeExact(2);
+    }
+}
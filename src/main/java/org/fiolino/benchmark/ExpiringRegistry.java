@@ -0,0 +1,223 @@
+package org.fiolino.benchmark;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A registry that caches the results of a handle with one parameter per argument for a limited time.
+ *
+ * Once an entry is older than the refresh time, the next reader starts a reload in the background and
+ * still gets the old value, as do all readers until the reload has finished. Only entries that weren't read
+ * at all until the expiry time get reloaded synchronously. If a background reload fails, or the executor rejects
+ * it, the old value stays, and the next reader tries again.
+ *
+ * A synchronous load happens only once per key at a time: the first reader puts a placeholder into the map and
+ * executes the target outside of it, and concurrent readers of the same key wait for its latch. If the load
+ * fails, the placeholder is removed and the next reader tries again.
+ *
+ * Keys that aren't read anymore don't stay forever. At most once per expiry time, the reader that starts a load
+ * or a refresh also hands a scan to the executor, which removes all expired entries. If the executor rejects it,
+ * the scan is skipped until the next expiry time.
+ *
+ * Created by kuli on 17.10.26.
+ */
+final class ExpiringRegistry {
+
+    private static final Object NULL = new Object();
+
+    private static final MethodHandle GET;
+
+    static {
+        try {
+            GET = MethodHandles.lookup().findVirtual(ExpiringRegistry.class, "get", MethodType.methodType(Object.class, Object.class));
+        } catch (NoSuchMethodException | IllegalAccessException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    private final MethodHandle target;
+    private final MethodType type;
+    private final long expireAfterNanos;
+    private final long refreshAfterNanos;
+    private final Executor executor;
+    // Values are either an Entry or a Loading placeholder
+    private final ConcurrentHashMap<Object, Object> entries = new ConcurrentHashMap<>();
+    private final AtomicLong nextEviction;
+    private InvocationMetrics metrics = InvocationMetrics.NONE;
+
+    ExpiringRegistry(MethodHandle target, long expireAfter, long refreshAfter, TimeUnit unit) {
+        this(target, expireAfter, refreshAfter, unit, ForkJoinPool.commonPool());
+    }
+
+    ExpiringRegistry(MethodHandle target, long expireAfter, long refreshAfter, TimeUnit unit, Executor executor) {
+        type = target.type();
+        if (type.parameterCount() != 1) {
+            throw new IllegalArgumentException(target + " must have exactly one parameter");
+        }
+        if (refreshAfter > expireAfter) {
+            throw new IllegalArgumentException("Refresh time " + refreshAfter + " is after expiry " + expireAfter);
+        }
+        this.target = target.asType(MethodType.methodType(Object.class, Object.class));
+        expireAfterNanos = unit.toNanos(expireAfter);
+        refreshAfterNanos = unit.toNanos(refreshAfter);
+        this.executor = executor;
+        nextEviction = new AtomicLong(System.nanoTime() + expireAfterNanos);
+    }
+
+    /**
+     * Creates a handle of the same type as the target, which returns the cached value for its argument.
+     */
+    MethodHandle getAccessor() {
+        return GET.bindTo(this).asType(type);
+    }
+
+    /**
+     * Counts hits, misses, refreshes and the target's execution times under the given name; see InvocationMetrics.
+     */
+    ExpiringRegistry withMetrics(String name) {
+        metrics = InvocationMetrics.named(name);
+        return this;
+    }
+
+    private Object get(Object key) throws Throwable {
+        Object k = key == null ? NULL : key;
+        Object current = entries.get(k);
+        long now = System.nanoTime();
+        if (current instanceof Entry) {
+            Entry e = (Entry) current;
+            if (now - e.loadedAt < expireAfterNanos) {
+                if (now - e.loadedAt >= refreshAfterNanos && e.refreshing.compareAndSet(false, true)) {
+                    refresh(k, key, e);
+                    evictIfDue(now);
+                }
+                if (InvocationMetrics.enabled()) {
+                    metrics.hit();
+                }
+                return e.value;
+            }
+        }
+        evictIfDue(now);
+        return load(k, key, current, now);
+    }
+
+    private Object load(Object k, Object key, Object current, long now) throws Throwable {
+        for (;;) {
+            if (current instanceof Loading) {
+                Entry e = ((Loading) current).await();
+                if (e != null) {
+                    return e.value;
+                }
+                // The load has failed, so try again
+                current = entries.get(k);
+                continue;
+            }
+            Loading mine = new Loading();
+            if (current == null ? entries.putIfAbsent(k, mine) == null : entries.replace(k, current, mine)) {
+                return execute(k, key, mine, now);
+            }
+            current = entries.get(k);
+            if (current instanceof Entry && System.nanoTime() - ((Entry) current).loadedAt < expireAfterNanos) {
+                return ((Entry) current).value;
+            }
+        }
+    }
+
+    private Object execute(Object k, Object key, Loading loading, long now) throws Throwable {
+        long start = InvocationMetrics.startTiming();
+        Entry e = null;
+        try {
+            e = new Entry((Object) target.invokeExact(key), now);
+            metrics.missed(start);
+            entries.replace(k, loading, e);
+            return e.value;
+        } finally {
+            if (e == null) {
+                entries.remove(k, loading);
+            }
+            loading.complete(e);
+        }
+    }
+
+    private void refresh(Object k, Object key, Entry old) {
+        try {
+            executor.execute(() -> {
+                Object value;
+                long start = InvocationMetrics.startTiming();
+                try {
+                    value = (Object) target.invokeExact(key);
+                } catch (Throwable t) {
+                    old.refreshing.set(false);
+                    return;
+                }
+                metrics.refreshed(start);
+                entries.replace(k, old, new Entry(value, System.nanoTime()));
+            });
+        } catch (RejectedExecutionException ex) {
+            old.refreshing.set(false);
+        }
+    }
+
+    private void evictIfDue(long now) {
+        long due = nextEviction.get();
+        if (now - due < 0 || !nextEviction.compareAndSet(due, now + expireAfterNanos)) {
+            return;
+        }
+        try {
+            executor.execute(this::evictExpired);
+        } catch (RejectedExecutionException ex) {
+            // Try again after the next expiry time
+        }
+    }
+
+    private void evictExpired() {
+        long now = System.nanoTime();
+        for (Map.Entry<Object, Object> me : entries.entrySet()) {
+            Object v = me.getValue();
+            if (v instanceof Entry && now - ((Entry) v).loadedAt >= expireAfterNanos) {
+                entries.remove(me.getKey(), v);
+            }
+        }
+    }
+
+    private static final class Entry {
+        final Object value;
+        final long loadedAt;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(Object value, long loadedAt) {
+            this.value = value;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    /**
+     * Stands in for an entry while its first or expired value gets loaded.
+     */
+    private static final class Loading {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Entry entry;
+
+        void complete(Entry loaded) {
+            entry = loaded;
+            done.countDown();
+        }
+
+        /**
+         * Waits until the load is done, and returns the new entry, or null if it failed.
+         */
+        Entry await() throws InterruptedException {
+            done.await();
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package org.fiolino.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Read latency of an ExpiringRegistry whose entries expire all the time.
+ *
+ * With refresh ahead, readers keep getting the old value while the new one is computed in the background.
+ * Without, the first reader after the expiry has to compute the value itself, which shows up in the
+ * p0.99 and p0.999 percentiles.
+ *
+ * Created by kuli on 17.10.26.
+ */
+@BenchmarkMode(Mode.SampleTime) @Warmup(iterations = 5) @Fork(value = 1) @OutputTimeUnit(TimeUnit.NANOSECONDS) @Measurement(iterations = 10)
+@State(Scope.Benchmark)
+public class ExpiringRegistryBenchmark {
+
+    private static final int KEYS = 100;
+
+    private static final MethodHandle COMPUTE;
+
+    private static long computationCost;
+
+    static {
+        try {
+            COMPUTE = lookup().findStatic(ExpiringRegistryBenchmark.class, "compute", methodType(Object.class, Object.class));
+        } catch (IllegalAccessException | NoSuchMethodException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    static Object compute(Object key) {
+        Blackhole.consumeCPU(computationCost);
+        return key;
+    }
+
+    /**
+     * CPU work of each computation, in JMH's tokens.
+     */
+    @Param({"10000", "1000000"})
+    public long computationTokens;
+
+    @Param({"10"})
+    public int expireAfterMillis;
+
+    private MethodHandle refreshAheadAccessor;
+    private MethodHandle expireOnlyAccessor;
+    private final Object[] keys = new Object[KEYS];
+    private int index;
+
+    @Setup
+    public void setup() {
+        computationCost = computationTokens;
+        refreshAheadAccessor = new ExpiringRegistry(COMPUTE, expireAfterMillis * 10, expireAfterMillis, TimeUnit.MILLISECONDS).getAccessor();
+        expireOnlyAccessor = new ExpiringRegistry(COMPUTE, expireAfterMillis, expireAfterMillis, TimeUnit.MILLISECONDS).getAccessor();
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "key" + i;
+        }
+    }
+
+    private Object nextKey() {
+        int i = index;
+        index = i == KEYS - 1 ? 0 : i + 1;
+        return keys[i];
+    }
+
+    @Benchmark
+    public Object testRefreshAhead() throws Throwable {
+        return (Object) refreshAheadAccessor.invokeExact(nextKey());
+    }
+
+    @Benchmark
+    public Object testExpireOnly() throws Throwable {
+        return (Object) expireOnlyAccessor.invokeExact(nextKey());
+    }
+}
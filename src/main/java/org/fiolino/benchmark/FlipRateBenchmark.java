@@ -0,0 +1,181 @@
+package org.fiolino.benchmark;
+
+import org.fiolino.common.reflection.AlmostFinal;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Flips an AlmostFinal at a fixed rate while summing it up, and compares that to a volatile field flipped
+ * at the same rate.
+ *
+ * Each benchmark runs twice: in AverageTime mode, every iteration reports how many flips happened, how long it
+ * took until an invocation was fast again after a flip, how many compilations the JIT did and how long they took,
+ * and how much the code cache grew. JMH only reports AuxCounters in Throughput and AverageTime mode, so the
+ * SampleTime run that follows adds just the distribution of the invocation times.
+ *
+ * A flip isn't necessarily a deoptimization. The compilations count the real work: each flip that invalidates
+ * the compiled loop makes the JIT compile it again. Run with -XX:+PrintCompilation to see the methods that are
+ * made not entrant, or with -prof comp for more details on the compiler.
+ *
+ * Created by kuli on 17.10.26.
+ */
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime}) @Warmup(iterations = 5) @Fork(value = 1) @OutputTimeUnit(TimeUnit.NANOSECONDS) @Measurement(iterations = 10)
+@State(Scope.Thread)
+public class FlipRateBenchmark {
+
+    private static final AlmostFinal<Integer> WHAT_TO_ADD = AlmostFinal.forInt(2);
+    private static final MethodHandle GETTER_HANDLE = WHAT_TO_ADD.createGetter();
+
+    private static volatile int definitelyNotConstant = 2;
+
+    @Param({"1", "10", "100", "1000", "10000"})
+    public int flipsPerSecond;
+
+    private long flipIntervalNanos;
+    private long nextFlip;
+    private int nextValue = 3;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        flipIntervalNanos = TimeUnit.SECONDS.toNanos(1) / flipsPerSecond;
+        nextFlip = System.nanoTime() + flipIntervalNanos;
+    }
+
+    private boolean isFlipDue(long now) {
+        if (now < nextFlip) {
+            return false;
+        }
+        nextFlip = now + flipIntervalNanos;
+        return true;
+    }
+
+    private int nextValue() {
+        int v = nextValue;
+        nextValue = v == 2 ? 3 : 2;
+        return v;
+    }
+
+    /**
+     * Counts flips and measures the time until the benchmark loop is as fast as before.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class JitCounters {
+        private static final int COMPILATIONS = HotSpotCounters.find(HotSpotCounters.COMPILATIONS);
+
+        /**
+         * Number of updates in this iteration.
+         */
+        public long flips;
+        /**
+         * Number of flips after which the loop got back to its former speed before the next flip.
+         */
+        public long recoveries;
+        /**
+         * Sum of the time from a flip until the loop was fast again, in microseconds.
+         */
+        public long recoveryMicros;
+        /**
+         * Number of JIT compilations in this iteration, or -1 if HotSpot's performance counters aren't available.
+         */
+        public long compilations;
+        /**
+         * Time the JIT compiler spent in this iteration, in milliseconds.
+         */
+        public long compilationMillis;
+        /**
+         * Growth of the used code cache in this iteration, in kilobytes.
+         */
+        public long codeCacheGrowthKb;
+
+        private long fastest = Long.MAX_VALUE;
+        private long lastFlip;
+        private long compilationsAtStart;
+        private long compilationTimeAtStart;
+        private long codeCacheAtStart;
+
+        @Setup(Level.Iteration)
+        public void start() {
+            lastFlip = 0;
+            compilationsAtStart = HotSpotCounters.read(COMPILATIONS);
+            compilationTimeAtStart = compilationTime();
+            codeCacheAtStart = codeCacheUsage();
+        }
+
+        @TearDown(Level.Iteration)
+        public void stop() {
+            compilations = COMPILATIONS < 0 ? -1 : HotSpotCounters.read(COMPILATIONS) - compilationsAtStart;
+            compilationMillis = compilationTime() - compilationTimeAtStart;
+            codeCacheGrowthKb = (codeCacheUsage() - codeCacheAtStart) / 1024;
+        }
+
+        void flipped(long now) {
+            flips++;
+            lastFlip = now;
+        }
+
+        void finished(long start, long end) {
+            long duration = end - start;
+            if (duration < fastest) {
+                fastest = duration;
+            }
+            if (lastFlip != 0 && duration <= 2 * fastest) {
+                recoveries++;
+                recoveryMicros += TimeUnit.NANOSECONDS.toMicros(end - lastFlip);
+                lastFlip = 0;
+            }
+        }
+
+        private static long compilationTime() {
+            CompilationMXBean compiler = ManagementFactory.getCompilationMXBean();
+            return compiler != null && compiler.isCompilationTimeMonitoringSupported() ? compiler.getTotalCompilationTime() : 0;
+        }
+
+        private static long codeCacheUsage() {
+            long used = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.NON_HEAP && pool.getName().contains("Code")) {
+                    used += pool.getUsage().getUsed();
+                }
+            }
+            return used;
+        }
+    }
+
+    @Benchmark
+    public void testAlmostFinalHandle(Blackhole blackhole, JitCounters counters) throws Throwable {
+        long start = System.nanoTime();
+        if (isFlipDue(start)) {
+            WHAT_TO_ADD.updateTo(nextValue());
+            counters.flipped(start);
+        }
+        int count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += (int) GETTER_HANDLE.invokeExact();
+        }
+        blackhole.consume(count);
+        counters.finished(start, System.nanoTime());
+    }
+
+    @Benchmark
+    public void testDirectVolatile(Blackhole blackhole, JitCounters counters) {
+        long start = System.nanoTime();
+        if (isFlipDue(start)) {
+            definitelyNotConstant = nextValue();
+            counters.flipped(start);
+        }
+        int count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += definitelyNotConstant;
+        }
+        blackhole.consume(count);
+        counters.finished(start, System.nanoTime());
+    }
+}
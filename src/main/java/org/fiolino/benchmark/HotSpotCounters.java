@@ -0,0 +1,99 @@
+package org.fiolino.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads HotSpot's own performance counters, like jcmd PerfCounter.print does, from the hsperfdata file of the
+ * running JVM.
+ *
+ * The file is memory mapped by the JVM and updated in place, so a mapping of it always shows the current values.
+ * These are the same counters that sun.management.HotspotCompilationMBean exposes, but that one isn't accessible
+ * without --add-exports since Java 9.
+ *
+ * HotSpot doesn't count invalidated compiled methods there: sun.ci.totalInvalidates exists, but it's never
+ * incremented, and JFR's jdk.Deoptimization only records uncommon traps. Since an invalidated method gets compiled
+ * again as soon as it's hot, the number of compilations is what shows the cost of invalidations.
+ *
+ * If the JVM runs with -XX:-UsePerfData, or the file can't be found, all counters read as -1.
+ *
+ * Created by kuli on 17.10.26.
+ */
+final class HotSpotCounters {
+
+    /**
+     * All compilations so far, standard and OSR, including recompilations of invalidated methods.
+     */
+    static final String COMPILATIONS = "sun.ci.totalCompiles";
+
+    private static final int MAGIC = 0xcafec0c0;
+
+    private static final MappedByteBuffer DATA = map();
+
+    private HotSpotCounters() {
+        throw new AssertionError("Static class");
+    }
+
+    private static MappedByteBuffer map() {
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        String pid = name.substring(0, Math.max(0, name.indexOf('@')));
+        File file = new File(new File(System.getProperty("java.io.tmpdir"), "hsperfdata_" + System.getProperty("user.name")), pid);
+        if (pid.isEmpty() || !file.isFile()) {
+            return null;
+        }
+        try (RandomAccessFile f = new RandomAccessFile(file, "r")) {
+            MappedByteBuffer data = f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, f.length());
+            if (data.getInt(0) != MAGIC) {
+                return null;
+            }
+            data.order(data.get(4) == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+            return data;
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the position of the named long counter's value, or -1 if there's none.
+     */
+    static int find(String counter) {
+        if (DATA == null) {
+            return -1;
+        }
+        // Prologue: magic, byte order, versions, accessible, used, overflow, modification time, entry offset, count
+        int entry = DATA.getInt(24);
+        int entries = DATA.getInt(28);
+        for (int i = 0; i < entries; i++) {
+            // Entry: length, name offset, vector length, type, flags, units, variability, data offset
+            int length = DATA.getInt(entry);
+            int nameStart = entry + DATA.getInt(entry + 4);
+            int nameEnd = nameStart;
+            while (DATA.get(nameEnd) != 0) {
+                nameEnd++;
+            }
+            byte[] nameBytes = new byte[nameEnd - nameStart];
+            for (int j = 0; j < nameBytes.length; j++) {
+                nameBytes[j] = DATA.get(nameStart + j);
+            }
+            if (DATA.getInt(entry + 8) == 0 && DATA.get(entry + 12) == 'J'
+                    && counter.equals(new String(nameBytes, StandardCharsets.US_ASCII))) {
+                return entry + DATA.getInt(entry + 16);
+            }
+            entry += length;
+        }
+        return -1;
+    }
+
+    /**
+     * The current value at the position returned by find(), or -1 if it wasn't found.
+     */
+    static long read(int position) {
+        return position < 0 ? -1 : DATA.getLong(position);
+    }
+}
@@ -0,0 +1,159 @@
+package org.fiolino.benchmark;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Collects the -XX:+PrintInlining output of a forked JVM, as written by -XX:+LogVMOutput into its log file.
+ *
+ * Only call sites to the commons library, to spun lambda or proxy classes, and to the linkers and lambda forms of
+ * java.lang.invoke are counted; these are the ones that decide whether a handle or lambdafied call costs nothing
+ * or a real call. The call from JMH's stub into the benchmark method itself is ignored, since JMH always forbids
+ * to inline it.
+ *
+ * Created by kuli on 17.10.26.
+ */
+final class InliningLog {
+
+    private static final Pattern CALL_SITE = Pattern.compile("@ \\d+\\s+(\\S+::\\S+) \\(\\d+ bytes\\)\\s*(.*)$");
+    private static final Pattern RELEASE = Pattern.compile("<release>\\s*(\\S+)\\s*</release>");
+    private static final String FAILED_PREFIX = "failed to inline: ";
+
+    private final String benchmarkMethod;
+    private final Map<String, Map<String, Integer>> failures = new TreeMap<>();
+    private final Map<String, Integer> inlined = new HashMap<>();
+    private String release = "unknown";
+
+    /**
+     * @param benchmark The benchmark's full name, like org.fiolino.benchmark.SingleCallBenchmark.testDirectStatic
+     */
+    InliningLog(String benchmark) {
+        int dot = benchmark.lastIndexOf('.');
+        benchmarkMethod = benchmark.substring(0, dot) + "::" + benchmark.substring(dot + 1);
+    }
+
+    void read(Path logFile) throws IOException {
+        String text = new String(Files.readAllBytes(logFile), StandardCharsets.UTF_8);
+        Matcher m = RELEASE.matcher(text);
+        if (m.find()) {
+            release = m.group(1);
+        }
+        for (String line : text.split("\n")) {
+            if (line.indexOf('@') >= 0) {
+                readLine(unescape(line));
+            }
+        }
+    }
+
+    private void readLine(String line) {
+        Matcher m = CALL_SITE.matcher(line);
+        if (!m.find()) {
+            return;
+        }
+        String callee = m.group(1);
+        if (!isRelevant(callee) || callee.equals(benchmarkMethod)) {
+            return;
+        }
+        String reason = m.group(2).trim();
+        if (isInlined(reason)) {
+            inlined.merge(callee, 1, Integer::sum);
+            return;
+        }
+        if (reason.startsWith(FAILED_PREFIX)) {
+            reason = reason.substring(FAILED_PREFIX.length());
+        }
+        failures.computeIfAbsent(callee, k -> new TreeMap<>()).merge(reason, 1, Integer::sum);
+    }
+
+    /**
+     * Whether the callee is on the path of an invocation. Failures within java.lang.invoke's setup code, like
+     * MethodType's factories, only matter when handles get created. Spun lambda forms are named like
+     * LambdaForm$MH/0x1234, unlike LambdaForm's own nested classes.
+     */
+    private static boolean isRelevant(String callee) {
+        return callee.startsWith("org.fiolino.") || callee.contains("$$Lambda") || callee.contains("$Proxy")
+                || callee.startsWith("java.lang.invoke.MethodHandle::")
+                || callee.startsWith("java.lang.invoke.LambdaForm$") && callee.indexOf('/') > 0
+                || callee.startsWith("java.lang.invoke.") && callee.contains("$Holder::");
+    }
+
+    private static boolean isInlined(String reason) {
+        return reason.startsWith("inline") || reason.startsWith("force inline") || reason.startsWith("accessor")
+                || reason.contains("intrinsic");
+    }
+
+    private static String unescape(String xml) {
+        return xml.replace("&lt;", "<").replace("&gt;", ">").replace("&apos;", "'")
+                .replace("&quot;", "\"").replace("&amp;", "&");
+    }
+
+    /**
+     * The JVM's release, as written into the log.
+     */
+    String getRelease() {
+        return release;
+    }
+
+    /**
+     * The number of call sites that weren't inlined.
+     */
+    int getFailedCallSites() {
+        int sum = 0;
+        for (Map<String, Integer> reasons : failures.values()) {
+            for (int n : reasons.values()) {
+                sum += n;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * The number of callees that were not inlined at a single call site.
+     */
+    int getNeverInlined() {
+        int count = 0;
+        for (String callee : failures.keySet()) {
+            if (!inlined.containsKey(callee)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Prints the callees with the most failed call sites, with their reasons.
+     */
+    void printFailures(PrintStream out, String indent, int limit) {
+        List<Map.Entry<String, Map<String, Integer>>> sorted = new ArrayList<>(failures.entrySet());
+        Collections.sort(sorted, (a, b) -> Integer.compare(total(b.getValue()), total(a.getValue())));
+        for (Map.Entry<String, Map<String, Integer>> e : sorted.subList(0, Math.min(limit, sorted.size()))) {
+            StringBuilder reasons = new StringBuilder();
+            for (Map.Entry<String, Integer> r : e.getValue().entrySet()) {
+                reasons.append(reasons.length() == 0 ? "" : ", ").append(r.getKey()).append(" x").append(r.getValue());
+            }
+            Integer inlinedCount = inlined.get(e.getKey());
+            out.println(String.format(Locale.ROOT, "%s%s: %s%s", indent, e.getKey(), reasons,
+                    inlinedCount == null ? " (never inlined)" : " (inlined " + inlinedCount + " times elsewhere)"));
+        }
+    }
+
+    private static int total(Map<String, Integer> reasons) {
+        int sum = 0;
+        for (int n : reasons.values()) {
+            sum += n;
+        }
+        return sum;
+    }
+}
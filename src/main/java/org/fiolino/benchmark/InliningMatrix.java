@@ -0,0 +1,187 @@
+package org.fiolino.benchmark;
+
+import org.fiolino.benchmark.BenchmarkProfile.JvmVariant;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.BenchmarkList;
+import org.openjdk.jmh.runner.BenchmarkListEntry;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.format.OutputFormat;
+import org.openjdk.jmh.runner.format.OutputFormatFactory;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Runs the single call and loop scenarios across a matrix of JVMs and inlining flags, and tells which call sites
+ * failed to inline and why.
+ *
+ * Every benchmark runs separately per JVM and flag set, with -XX:+PrintInlining written into a log file per fork.
+ * The logs are kept in the directory named by -Dbenchmark.inlining (default: inlining), one subdirectory per run.
+ * Afterwards, the scores are printed per benchmark, together with the call sites into the commons library and
+ * into java.lang.invoke's invocation path that weren't inlined.
+ *
+ * The JVMs to compare are given as a comma separated list of java executables with -Dbenchmark.jvms; the default
+ * is the running one. All other arguments are JMH's; without any benchmark selected, SingleCallBenchmark and
+ * SumUpIntegersBenchmark run with one fork each.
+ *
+ * Created by kuli on 17.10.26.
+ */
+public final class InliningMatrix {
+
+    private static final String DEFAULT_BENCHMARKS = "SingleCallBenchmark|SumUpIntegersBenchmark";
+
+    private static final String DEFAULT_DIRECTORY = "inlining";
+
+    /**
+     * The failed callees to print per benchmark and configuration.
+     */
+    private static final int FAILURES_SHOWN = 5;
+
+    private static final List<JvmVariant> VARIANTS = Arrays.asList(
+            JvmVariant.DEFAULT,
+            new JvmVariant("tiered-off", "-XX:-TieredCompilation"),
+            new JvmVariant("inline-70", "-XX:MaxInlineSize=70"),
+            new JvmVariant("inline-level-9", "-XX:MaxInlineLevel=9"),
+            new JvmVariant("inline-level-15", "-XX:MaxInlineLevel=15"));
+
+    private InliningMatrix() {
+        throw new AssertionError("Static class");
+    }
+
+    public static void main(String[] args) throws RunnerException, IOException {
+        CommandLineOptions cmdOptions;
+        try {
+            cmdOptions = new CommandLineOptions(args);
+        } catch (CommandLineOptionException ex) {
+            System.err.println("Error parsing command line:");
+            System.err.println(" " + ex.getMessage());
+            System.exit(1);
+            return;
+        }
+        List<String> includes = cmdOptions.getIncludes().isEmpty()
+                ? Collections.singletonList(DEFAULT_BENCHMARKS) : cmdOptions.getIncludes();
+        Set<String> benchmarks = new TreeSet<>();
+        OutputFormat silent = OutputFormatFactory.createFormatInstance(System.out, VerboseMode.SILENT);
+        for (BenchmarkListEntry e : BenchmarkList.defaultList().find(silent, includes, cmdOptions.getExcludes())) {
+            benchmarks.add(e.getUsername());
+        }
+        String jvmList = System.getProperty("benchmark.jvms");
+        List<String> jvms = jvmList == null || jvmList.isEmpty()
+                ? Collections.singletonList(BenchmarkProfile.jvmOf(cmdOptions)) : Arrays.asList(jvmList.split(","));
+        File directory = new File(System.getProperty("benchmark.inlining", DEFAULT_DIRECTORY),
+                new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.ROOT).format(new Date()));
+
+        Map<String, List<Cell>> matrix = new TreeMap<>();
+        for (int i = 0; i < jvms.size(); i++) {
+            String jvm = jvms.get(i);
+            for (JvmVariant variant : VARIANTS) {
+                if (!variant.isSupportedBy(jvm)) {
+                    System.err.println("Skipping JVM variant " + variant.name + ", not supported by " + jvm);
+                    continue;
+                }
+                String configuration = "jvm" + (i + 1) + "-" + variant.name;
+                for (String benchmark : benchmarks) {
+                    File logs = new File(new File(directory, configuration), shortNameOf(benchmark));
+                    if (!logs.isDirectory() && !logs.mkdirs()) {
+                        throw new IOException("Cannot create " + logs);
+                    }
+                    Collection<RunResult> results = run(cmdOptions, jvm, variant, benchmark, benchmarks, logs);
+                    InliningLog log = new InliningLog(benchmark);
+                    try (DirectoryStream<Path> files = Files.newDirectoryStream(logs.toPath(), "*.log")) {
+                        for (Path f : files) {
+                            log.read(f);
+                        }
+                    }
+                    List<Cell> cells = matrix.computeIfAbsent(benchmark, k -> new ArrayList<>());
+                    cells.add(new Cell(configuration + " (" + log.getRelease() + ")", results, log));
+                }
+            }
+        }
+        printMatrix(matrix);
+        System.out.println();
+        System.out.println("Inlining logs are in " + directory);
+    }
+
+    private static Collection<RunResult> run(CommandLineOptions cmdOptions, String jvm, JvmVariant variant,
+                                             String benchmark, Set<String> all, File logs) throws RunnerException {
+        ChainedOptionsBuilder builder = new OptionsBuilder().parent(cmdOptions).jvm(jvm);
+        if (cmdOptions.getIncludes().isEmpty()) {
+            builder.include(DEFAULT_BENCHMARKS);
+        }
+        if (!cmdOptions.getForkCount().hasValue()) {
+            builder.forks(1);
+        }
+        Set<String> others = new TreeSet<>(all);
+        others.remove(benchmark);
+        BenchmarkMain.excludeAll(builder, others);
+        variant.apply(cmdOptions, builder, "-XX:+UnlockDiagnosticVMOptions", "-XX:+PrintInlining",
+                "-XX:+LogVMOutput", "-XX:-DisplayVMOutput",
+                "-XX:LogFile=" + new File(logs, "vm-%p.log").getAbsolutePath());
+        return new Runner(builder.build()).run();
+    }
+
+    private static void printMatrix(Map<String, List<Cell>> matrix) {
+        for (Map.Entry<String, List<Cell>> e : matrix.entrySet()) {
+            System.out.println();
+            System.out.println(e.getKey());
+            System.out.println(String.format(Locale.ROOT, "  %-40s %14s %-8s %12s %14s", "Configuration", "Score", "Units",
+                    "Not inlined", "Never inlined"));
+            for (Cell c : e.getValue()) {
+                for (RunResult r : c.results) {
+                    System.out.println(String.format(Locale.ROOT, "  %-40s %14.3f %-8s %12d %14d",
+                            c.configuration + labelSuffix(r, e.getKey()), r.getPrimaryResult().getScore(),
+                            r.getPrimaryResult().getScoreUnit(), c.log.getFailedCallSites(), c.log.getNeverInlined()));
+                }
+                c.log.printFailures(System.out, "      ", FAILURES_SHOWN);
+            }
+        }
+    }
+
+    /**
+     * The benchmark name without its package.
+     */
+    private static String shortNameOf(String benchmark) {
+        int classDot = benchmark.lastIndexOf('.', benchmark.lastIndexOf('.') - 1);
+        return benchmark.substring(classDot + 1);
+    }
+
+    /**
+     * The parameters of the result, if there are any.
+     */
+    private static String labelSuffix(RunResult r, String benchmark) {
+        return BenchmarkMain.labelOf(r.getParams()).substring(benchmark.length());
+    }
+
+    private static final class Cell {
+        final String configuration;
+        final Collection<RunResult> results;
+        final InliningLog log;
+
+        Cell(String configuration, Collection<RunResult> results, InliningLog log) {
+            this.configuration = configuration;
+            this.results = results;
+            this.log = log;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package org.fiolino.benchmark;
+
+import org.fiolino.common.reflection.AlmostFinal;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts hits, misses, updates and initialization times of a named registry or almost final value, and exposes
+ * them via JMX.
+ *
+ * Counting is off by default, unless -Dbenchmark.metrics=true is given. The switch is an AlmostFinal itself:
+ * callers guard every count with enabled(), which the JIT folds to a constant, so that disabled metrics cost
+ * nothing on the hot path. Switching them on or off invalidates compiled callers once.
+ *
+ * Instances get created by name and registered as MXBeans right away, so that they can be switched on from a
+ * JMX console.
+ *
+ * Created by kuli on 17.10.26.
+ */
+final class InvocationMetrics implements InvocationMetricsMXBean {
+
+    /**
+     * Used by instances without a name; it never counts and is never registered.
+     */
+    static final InvocationMetrics NONE = new InvocationMetrics("none");
+
+    private static final AlmostFinal<Boolean> ENABLED = AlmostFinal.forBoolean(Boolean.getBoolean("benchmark.metrics"));
+    private static final MethodHandle IS_ENABLED = ENABLED.createGetter();
+
+    private static final ConcurrentMap<String, InvocationMetrics> ALL = new ConcurrentHashMap<>();
+
+    private static final MethodHandle TIMED;
+
+    static {
+        try {
+            TIMED = MethodHandles.lookup().findVirtual(InvocationMetrics.class, "timed",
+                    MethodType.methodType(Object.class, MethodHandle.class, Object[].class));
+        } catch (NoSuchMethodException | IllegalAccessException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    private final String name;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder updates = new LongAdder();
+    private final LongAdder initializations = new LongAdder();
+    private final LongAdder initializationNanos = new LongAdder();
+    private final LongAccumulator maxInitializationNanos = new LongAccumulator(Math::max, 0);
+
+    private InvocationMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the metrics of that name, and registers them with the platform MBean server when they're new.
+     */
+    static InvocationMetrics named(String name) {
+        InvocationMetrics m = ALL.get(name);
+        if (m != null) {
+            return m;
+        }
+        InvocationMetrics created = new InvocationMetrics(name);
+        m = ALL.putIfAbsent(name, created);
+        if (m != null) {
+            return m;
+        }
+        register(created);
+        return created;
+    }
+
+    private static void register(InvocationMetrics metrics) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(metrics, new ObjectName("org.fiolino.benchmark:type=InvocationMetrics,name="
+                    + ObjectName.quote(metrics.name)));
+        } catch (JMException ex) {
+            throw new IllegalStateException("Cannot register metrics " + metrics.name, ex);
+        }
+    }
+
+    /**
+     * Whether counting is switched on. This is a constant for compiled code.
+     */
+    static boolean enabled() {
+        try {
+            return (boolean) IS_ENABLED.invokeExact();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new UndeclaredThrowableException(t);
+        }
+    }
+
+    /**
+     * Switches counting on or off for all instances.
+     */
+    static synchronized void enable(boolean enabled) {
+        if (enabled() != enabled) {
+            ENABLED.updateTo(enabled);
+        }
+    }
+
+    /**
+     * Starts timing the execution of a target.
+     *
+     * @return The start time, or 0 if counting is disabled
+     */
+    static long startTiming() {
+        return enabled() ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * Counts a hit; callers check enabled() before.
+     */
+    void hit() {
+        if (this != NONE) {
+            hits.increment();
+        }
+    }
+
+    /**
+     * Counts an update, like a new almost final value; callers check enabled() before.
+     */
+    void updated() {
+        if (this != NONE) {
+            updates.increment();
+        }
+    }
+
+    /**
+     * Counts a miss whose target execution started at the given time from startTiming().
+     */
+    void missed(long start) {
+        if (start != 0L && this != NONE) {
+            misses.increment();
+            initialized(start);
+        }
+    }
+
+    /**
+     * Counts an update whose target execution started at the given time from startTiming().
+     */
+    void refreshed(long start) {
+        if (start != 0L && this != NONE) {
+            updates.increment();
+            initialized(start);
+        }
+    }
+
+    private void initialized(long start) {
+        long nanos = System.nanoTime() - start;
+        initializations.increment();
+        initializationNanos.add(nanos);
+        maxInitializationNanos.accumulate(nanos);
+    }
+
+    /**
+     * Wraps the target so that each of its executions counts as a timed miss, while counting is enabled.
+     * Meant for targets that get executed once per key, like those given to OneTimeRegistryBuilder.
+     */
+    MethodHandle timeInitializations(MethodHandle target) {
+        MethodType type = target.type();
+        int n = type.parameterCount();
+        MethodHandle spread = target.asSpreader(Object[].class, n).asType(MethodType.methodType(Object.class, Object[].class));
+        return MethodHandles.insertArguments(TIMED, 0, this, spread).asCollector(Object[].class, n).asType(type);
+    }
+
+    private Object timed(MethodHandle spread, Object[] arguments) throws Throwable {
+        long start = startTiming();
+        Object result = (Object) spread.invokeExact(arguments);
+        missed(start);
+        return result;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled();
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        enable(enabled);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public long getUpdates() {
+        return updates.sum();
+    }
+
+    @Override
+    public long getInitializations() {
+        return initializations.sum();
+    }
+
+    @Override
+    public long getInitializationNanosTotal() {
+        return initializationNanos.sum();
+    }
+
+    @Override
+    public long getInitializationNanosMax() {
+        return maxInitializationNanos.get();
+    }
+
+    @Override
+    public void reset() {
+        hits.reset();
+        misses.reset();
+        updates.reset();
+        initializations.reset();
+        initializationNanos.reset();
+        maxInitializationNanos.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "InvocationMetrics " + name + ": " + getHits() + " hits, " + getMisses() + " misses, "
+                + getUpdates() + " updates, " + getInitializations() + " initializations taking "
+                + getInitializationNanosTotal() + " ns";
+    }
+}
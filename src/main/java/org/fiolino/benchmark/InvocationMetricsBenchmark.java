@@ -0,0 +1,108 @@
+package org.fiolino.benchmark;
+
+import org.fiolino.common.reflection.AlmostFinal;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Shows that disabled InvocationMetrics cost nothing.
+ *
+ * testAlmostFinalHandle is the same as in SumUpIntegersBenchmark; testCountedAlmostFinalHandle additionally
+ * counts a hit per call, guarded by InvocationMetrics.enabled(). With metrics=false, both should be equally fast,
+ * as should the registry lookups with and without a metrics name.
+ *
+ * Created by kuli on 17.10.26.
+ */
+@BenchmarkMode(Mode.AverageTime) @Warmup(iterations = 5) @Fork(value = 1) @OutputTimeUnit(TimeUnit.NANOSECONDS) @Measurement(iterations = 10)
+@State(Scope.Benchmark)
+public class InvocationMetricsBenchmark {
+
+    private static final int KEYS = 1024;
+
+    private static final AlmostFinal<Integer> WHAT_TO_ADD = AlmostFinal.forInt(2);
+    private static final MethodHandle GETTER_HANDLE = WHAT_TO_ADD.createGetter();
+    private static final InvocationMetrics METRICS = InvocationMetrics.named("InvocationMetricsBenchmark.getter");
+
+    private static final MethodHandle REGISTRY;
+    private static final MethodHandle COUNTED_REGISTRY;
+
+    static {
+        MethodHandle compute;
+        try {
+            compute = lookup().findStatic(InvocationMetricsBenchmark.class, "compute", methodType(Integer.class, int.class));
+        } catch (IllegalAccessException | NoSuchMethodException ex) {
+            throw new AssertionError(ex);
+        }
+        REGISTRY = PrimitiveKeyedRegistry.createAccessorFor(compute);
+        COUNTED_REGISTRY = PrimitiveKeyedRegistry.createAccessorFor(compute, "InvocationMetricsBenchmark.registry");
+    }
+
+    static Integer compute(int key) {
+        return key;
+    }
+
+    @Param({"false", "true"})
+    public boolean metrics;
+
+    @Setup(Level.Trial)
+    public void enableMetrics() throws Throwable {
+        InvocationMetrics.enable(metrics);
+        for (int i=0; i < KEYS; i++) {
+            Integer a = (Integer) REGISTRY.invokeExact(i);
+            Integer b = (Integer) COUNTED_REGISTRY.invokeExact(i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void printMetrics() {
+        System.out.println();
+        System.out.println(METRICS);
+        System.out.println(InvocationMetrics.named("InvocationMetricsBenchmark.registry"));
+        InvocationMetrics.enable(false);
+    }
+
+    @Benchmark @AllocationFree
+    public void testAlmostFinalHandle(Blackhole blackhole) throws Throwable {
+        int count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += (int) GETTER_HANDLE.invokeExact();
+        }
+        blackhole.consume(count);
+    }
+
+    @Benchmark @AllocationFree
+    public void testCountedAlmostFinalHandle(Blackhole blackhole) throws Throwable {
+        int count = 0;
+        for (int i=0; i < 10_000; i++) {
+            if (InvocationMetrics.enabled()) {
+                METRICS.hit();
+            }
+            count += (int) GETTER_HANDLE.invokeExact();
+        }
+        blackhole.consume(count);
+    }
+
+    @Benchmark @AllocationFree
+    public void testRegistryHit(Blackhole blackhole) throws Throwable {
+        int count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += (Integer) REGISTRY.invokeExact(i & (KEYS - 1));
+        }
+        blackhole.consume(count);
+    }
+
+    @Benchmark @AllocationFree
+    public void testCountedRegistryHit(Blackhole blackhole) throws Throwable {
+        int count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += (Integer) COUNTED_REGISTRY.invokeExact(i & (KEYS - 1));
+        }
+        blackhole.consume(count);
+    }
+}
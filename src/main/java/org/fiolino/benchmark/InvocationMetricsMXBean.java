@@ -0,0 +1,44 @@
+package org.fiolino.benchmark;
+
+/**
+ * The JMX view of an InvocationMetrics instance, registered as org.fiolino.benchmark:type=InvocationMetrics,name=...
+ *
+ * Created by kuli on 17.10.26.
+ */
+public interface InvocationMetricsMXBean {
+
+    /**
+     * Whether the counters get updated at all; the same for all instances.
+     */
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    String getName();
+
+    /**
+     * Calls that were answered from the cache.
+     */
+    long getHits();
+
+    /**
+     * Calls that had to execute the target.
+     */
+    long getMisses();
+
+    /**
+     * New values, relinks or background refreshes.
+     */
+    long getUpdates();
+
+    /**
+     * Executions of the target, which are timed as initializations.
+     */
+    long getInitializations();
+
+    long getInitializationNanosTotal();
+
+    long getInitializationNanosMax();
+
+    void reset();
+}
@@ -0,0 +1,96 @@
+package org.fiolino.benchmark;
+
+import org.fiolino.common.reflection.Methods;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Creates 10,000 lambda factories like CheckBooleanBenchmark's, and one IntSupplier from each, in a fresh JVM.
+ *
+ * Methods.createLambdaFactory() and Lambdas.createLambdaFactory(Class) spin a new class for every factory,
+ * while Lambdas.createLambdaFactory(MethodHandle, Class) reuses one class per interface. Besides the time,
+ * the teardown prints how many classes got loaded and how much the Metaspace grew.
+ *
+ * Created by kuli on 17.10.26.
+ */
+@BenchmarkMode(Mode.SingleShotTime) @Warmup(iterations = 0) @Fork(value = 5) @OutputTimeUnit(TimeUnit.MILLISECONDS) @Measurement(iterations = 1)
+@State(Scope.Benchmark)
+public class LambdaFactoryStartupBenchmark {
+
+    private static final int FACTORIES = 10_000;
+
+    private static final MethodHandle RETURN_PARAMETER;
+
+    static {
+        try {
+            RETURN_PARAMETER = lookup().findStatic(LambdaFactoryStartupBenchmark.class, "returnParameter", methodType(int.class, int.class));
+        } catch (IllegalAccessException | NoSuchMethodException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    static int returnParameter(int value) {
+        return value;
+    }
+
+    private long loadedClassesAtStart;
+    private long metaspaceAtStart;
+
+    @Setup(Level.Iteration)
+    public void start() {
+        loadedClassesAtStart = ManagementFactory.getClassLoadingMXBean().getTotalLoadedClassCount();
+        metaspaceAtStart = metaspaceUsage();
+    }
+
+    @TearDown(Level.Iteration)
+    public void stop() {
+        long loadedClasses = ManagementFactory.getClassLoadingMXBean().getTotalLoadedClassCount() - loadedClassesAtStart;
+        long metaspaceGrowth = metaspaceUsage() - metaspaceAtStart;
+        System.out.println();
+        System.out.println("Loaded " + loadedClasses + " classes, Metaspace grew by " + metaspaceGrowth / 1024 + " KB");
+    }
+
+    private static long metaspaceUsage() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getName().equals("Metaspace")) {
+                return pool.getUsage().getUsed();
+            }
+        }
+        return 0;
+    }
+
+    @Benchmark
+    public void testMethodsFactory(Blackhole blackhole) throws Throwable {
+        for (int i = 0; i < FACTORIES; i++) {
+            MethodHandle factory = Methods.createLambdaFactory(lookup(), RETURN_PARAMETER, IntSupplier.class);
+            blackhole.consume((IntSupplier) factory.invokeExact(i));
+        }
+    }
+
+    @Benchmark
+    public void testSpinningFactory(Blackhole blackhole) throws Throwable {
+        for (int i = 0; i < FACTORIES; i++) {
+            MethodHandle factory = Lambdas.createLambdaFactory(IntSupplier.class);
+            MethodHandle bound = MethodHandles.insertArguments(RETURN_PARAMETER, 0, i);
+            blackhole.consume((IntSupplier) factory.invokeExact(bound));
+        }
+    }
+
+    @Benchmark
+    public void testPooledFactory(Blackhole blackhole) throws Throwable {
+        for (int i = 0; i < FACTORIES; i++) {
+            MethodHandle factory = Lambdas.createLambdaFactory(RETURN_PARAMETER, IntSupplier.class);
+            blackhole.consume((IntSupplier) factory.invokeExact(i));
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package org.fiolino.benchmark;
+
+import org.fiolino.common.reflection.AlmostFinal;
+import org.fiolino.common.reflection.Methods;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Compares every kind of lambdafied handle with calling the handle itself.
+ *
+ * For each shape there is a testXyzHandle benchmark calling invokeExact(), and variants via Methods.lambdafy()
+ * and Lambdas.lambdafy(). Run main() to fail if any Lambdas variant is more than twice as slow as its handle;
+ * the profile lambdafy-regression does that during the build. The ratios of the Methods.lambdafy() variants
+ * are only printed, since that one falls back to a proxy for all but direct handles.
+ *
+ * Created by kuli on 17.10.26.
+ */
+@BenchmarkMode(Mode.AverageTime) @Warmup(iterations = 5) @Fork(value = 1) @OutputTimeUnit(TimeUnit.NANOSECONDS) @Measurement(iterations = 5)
+@State(Scope.Benchmark)
+public class LambdafyRegressionBenchmark {
+
+    private static final double DEFAULT_MAX_RATIO = 2.0;
+
+    private static final AlmostFinal<Integer> WHAT_TO_ADD = AlmostFinal.forInt(2);
+    private static final MethodHandle ALMOST_FINAL_HANDLE = WHAT_TO_ADD.createGetter();
+    private static final IntSupplier ALMOST_FINAL_LAMBDAFY = Methods.lambdafy(ALMOST_FINAL_HANDLE, IntSupplier.class);
+    private static final IntSupplier ALMOST_FINAL_LAMBDAS = Lambdas.lambdafy(ALMOST_FINAL_HANDLE, IntSupplier.class);
+
+    private static final int CONSTANT = 2;
+
+    static int getValue() {
+        return 2;
+    }
+
+    static int returnParameter(int value) {
+        return value;
+    }
+
+    private static final MethodHandle CONSTANT_HANDLE;
+    private static final IntSupplier CONSTANT_LAMBDAFY;
+    private static final IntSupplier CONSTANT_LAMBDAS;
+
+    private static final MethodHandle METHOD_HANDLE;
+    private static final IntSupplier METHOD_LAMBDAFY;
+    private static final IntSupplier METHOD_LAMBDAS;
+
+    private static final MethodHandle BOUND_HANDLE;
+    private static final IntSupplier BOUND_LAMBDAFY;
+    private static final IntSupplier BOUND_LAMBDAS;
+
+    static {
+        MethodHandles.Lookup lookup = lookup();
+        MethodHandle r;
+        try {
+            CONSTANT_HANDLE = lookup.findStaticGetter(lookup.lookupClass(), "CONSTANT", int.class);
+            METHOD_HANDLE = lookup.findStatic(lookup.lookupClass(), "getValue", methodType(int.class));
+            r = lookup.findStatic(lookup.lookupClass(), "returnParameter", methodType(int.class, int.class));
+        } catch (IllegalAccessException | NoSuchFieldException | NoSuchMethodException ex) {
+            throw new AssertionError(ex);
+        }
+        CONSTANT_LAMBDAFY = Methods.lambdafy(lookup, CONSTANT_HANDLE, IntSupplier.class);
+        CONSTANT_LAMBDAS = Lambdas.lambdafy(CONSTANT_HANDLE, IntSupplier.class);
+        METHOD_LAMBDAFY = Methods.lambdafy(lookup, METHOD_HANDLE, IntSupplier.class);
+        METHOD_LAMBDAS = Lambdas.lambdafy(METHOD_HANDLE, IntSupplier.class);
+
+        BOUND_HANDLE = MethodHandles.insertArguments(r, 0, 2);
+        BOUND_LAMBDAFY = Methods.lambdafy(lookup, r, IntSupplier.class, 2);
+        BOUND_LAMBDAS = Lambdas.lambdafy(r, IntSupplier.class, 2);
+    }
+
+    @Benchmark
+    public void testAlmostFinalHandle(Blackhole blackhole) throws Throwable {
+        int count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += (int) ALMOST_FINAL_HANDLE.invokeExact();
+        }
+        blackhole.consume(count);
+    }
+
+    @Benchmark
+    public void testAlmostFinalLambdafy(Blackhole blackhole) {
+        int count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += ALMOST_FINAL_LAMBDAFY.getAsInt();
+        }
+        blackhole.consume(count);
+    }
+
+    @Benchmark @AllocationFree
+    public void testAlmostFinalLambdas(Blackhole blackhole) {
+        int count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += ALMOST_FINAL_LAMBDAS.getAsInt();
+        }
+        blackhole.consume(count);
+    }
+
+    @Benchmark
+    public void testConstantHandle(Blackhole blackhole) throws Throwable {
+        int count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += (int) CONSTANT_HANDLE.invokeExact();
+        }
+        blackhole.consume(count);
+    }
+
+    @Benchmark
+    public void testConstantLambdafy(Blackhole blackhole) {
+        int count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += CONSTANT_LAMBDAFY.getAsInt();
+        }
+        blackhole.consume(count);
+    }
+
+    @Benchmark @AllocationFree
+    public void testConstantLambdas(Blackhole blackhole) {
+        int count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += CONSTANT_LAMBDAS.getAsInt();
+        }
+        blackhole.consume(count);
+    }
+
+    @Benchmark
+    public void testMethodHandle(Blackhole blackhole) throws Throwable {
+        int count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += (int) METHOD_HANDLE.invokeExact();
+        }
+        blackhole.consume(count);
+    }
+
+    @Benchmark
+    public void testMethodLambdafy(Blackhole blackhole) {
+        int count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += METHOD_LAMBDAFY.getAsInt();
+        }
+        blackhole.consume(count);
+    }
+
+    @Benchmark @AllocationFree
+    public void testMethodLambdas(Blackhole blackhole) {
+        int count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += METHOD_LAMBDAS.getAsInt();
+        }
+        blackhole.consume(count);
+    }
+
+    @Benchmark
+    public void testBoundHandle(Blackhole blackhole) throws Throwable {
+        int count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += (int) BOUND_HANDLE.invokeExact();
+        }
+        blackhole.consume(count);
+    }
+
+    @Benchmark
+    public void testBoundLambdafy(Blackhole blackhole) {
+        int count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += BOUND_LAMBDAFY.getAsInt();
+        }
+        blackhole.consume(count);
+    }
+
+    @Benchmark @AllocationFree
+    public void testBoundLambdas(Blackhole blackhole) {
+        int count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += BOUND_LAMBDAS.getAsInt();
+        }
+        blackhole.consume(count);
+    }
+
+    /**
+     * Runs this benchmark and exits with 1 if any Lambdas variant is slower than its handle by more than
+     * the given ratio (first argument, default 2). The ratios of the Lambdafy variants are printed for information.
+     */
+    public static void main(String[] args) throws RunnerException {
+        double maxRatio = args.length > 0 ? Double.parseDouble(args[0]) : DEFAULT_MAX_RATIO;
+        Collection<RunResult> results = new Runner(new OptionsBuilder()
+                .include(LambdafyRegressionBenchmark.class.getName() + ".")
+                .build()).run();
+
+        Map<String, Double> scores = new TreeMap<>();
+        for (RunResult r : results) {
+            String name = r.getParams().getBenchmark();
+            scores.put(name.substring(name.lastIndexOf('.') + 1), r.getPrimaryResult().getScore());
+        }
+        List<String> failures = new ArrayList<>();
+        for (Map.Entry<String, Double> e : scores.entrySet()) {
+            String name = e.getKey();
+            boolean gated = name.endsWith("Lambdas");
+            if (!gated && !name.endsWith("Lambdafy")) {
+                continue;
+            }
+            String handleName = name.replaceFirst("(Lambdafy|Lambdas)$", "Handle");
+            Double handleScore = scores.get(handleName);
+            if (handleScore == null) {
+                continue;
+            }
+            double ratio = e.getValue() / handleScore;
+            String line = String.format(Locale.ROOT, "%s is %.1f times slower than %s", name, ratio, handleName);
+            if (gated && ratio > maxRatio) {
+                failures.add(line);
+            } else {
+                System.out.println(line);
+            }
+        }
+
+        if (failures.isEmpty()) {
+            System.out.println("All Lambdas variants are within " + maxRatio + " times their handles.");
+            return;
+        }
+        for (String f : failures) {
+            System.err.println(f);
+        }
+        System.exit(1);
+    }
+}
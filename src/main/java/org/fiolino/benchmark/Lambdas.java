@@ -0,0 +1,274 @@
+package org.fiolino.benchmark;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaConversionException;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandleInfo;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Creates lambda instances for arbitrary MethodHandles, not only for direct ones.
+ *
+ * Methods.lambdafy() falls back to MethodHandleProxies for field getters, constants and AlmostFinal getters,
+ * which is several thousand times slower in a loop. Here, the lambda implements its functional method by
+ * calling invokeExact() on the captured handle. Since the lambda class trusts its final fields, the handle
+ * gets constant folded and inlined as well as if it was called directly.
+ *
+ * Since the lambda class doesn't know the handle, one class per functional interface is enough. The pooled
+ * factories share it, so creating thousands of lambdas doesn't spin thousands of classes into the Metaspace.
+ * The adapters that bind the captured values get cached per target type as well.
+ * The drawback is that calls through non-constant instances of such a class see many different handles;
+ * only lambdas in static final fields get folded to their handle.
+ *
+ * Methods annotated with @PregeneratedLambda don't need any class spinning at all: the LambdafyProcessor has
+ * generated their lambda classes at build time already. The lookup of these classes, and of their absence, is
+ * cached per owner and method, so repeated calls neither load classes nor reflect on their fields.
+ * That doesn't make startup faster, though: AheadOfTimeLambdaStartupBenchmark measured 11 ms for ten
+ * pregenerated lambdas against 10 ms for the pooled ones, within the error of both. Loading ten small classes
+ * costs as much as spinning the one pooled class.
+ *
+ * Created by kuli on 17.10.26.
+ */
+final class Lambdas {
+
+    /**
+     * Generated lambdas are named Owner$$Lambdafy$method$interface, as in LambdafyProcessor.
+     */
+    private static final String PREGENERATED_INFIX = "$$Lambdafy$";
+
+    private static final MethodHandle BIND;
+
+    private static final ClassValue<MethodHandle> POOL = new ClassValue<MethodHandle>() {
+        @Override
+        protected MethodHandle computeValue(Class<?> type) {
+            return createLambdaFactory(type);
+        }
+    };
+
+    /**
+     * The pregenerated lambdas per owner class, keyed by method and interface name; MISSING if there is none.
+     */
+    private static final ClassValue<ConcurrentMap<String, Pregenerated>> PREGENERATED = new ClassValue<ConcurrentMap<String, Pregenerated>>() {
+        @Override
+        protected ConcurrentMap<String, Pregenerated> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+
+    private static final Pregenerated MISSING = new Pregenerated(null, null);
+
+    private static final ClassValue<ConcurrentMap<MethodType, MethodHandle>> SHAPES = new ClassValue<ConcurrentMap<MethodType, MethodHandle>>() {
+        @Override
+        protected ConcurrentMap<MethodType, MethodHandle> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+
+    static {
+        try {
+            BIND = MethodHandles.lookup().findStatic(Lambdas.class, "bind",
+                    MethodType.methodType(MethodHandle.class, MethodHandle.class, MethodType.class, Object[].class));
+        } catch (NoSuchMethodException | IllegalAccessException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    private Lambdas() {
+        throw new AssertionError("Static class");
+    }
+
+    /**
+     * Creates an instance of the given functional interface which calls the target.
+     *
+     * @param target The handle to call; its type gets adapted to the functional method
+     * @param functionalInterface The interface to implement
+     * @param initialValues These get bound to the first parameters of the target
+     * @param <T> The interface type
+     * @return The lambda
+     */
+    static <T> T lambdafy(MethodHandle target, Class<T> functionalInterface, Object... initialValues) {
+        MethodHandle h = MethodHandles.insertArguments(target, 0, initialValues)
+                .asType(functionalMethodType(functionalInterface));
+        MethodHandle factory = pooledLambdaFactory(functionalInterface);
+        try {
+            return functionalInterface.cast(factory.invoke(h));
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new AssertionError("Cannot instantiate lambda for " + functionalInterface.getName(), t);
+        }
+    }
+
+    /**
+     * Same as lambdafy(MethodHandle, Class, Object...), but returns the lambda generated at build time if the
+     * target is a direct handle of a static method annotated with @PregeneratedLambda for that interface.
+     *
+     * @param lookup Used to reveal the target; must have access to it
+     */
+    static <T> T lambdafy(MethodHandles.Lookup lookup, MethodHandle target, Class<T> functionalInterface, Object... initialValues) {
+        if (initialValues.length == 0) {
+            Object pregenerated = findPregenerated(lookup, target, functionalInterface);
+            if (pregenerated != null) {
+                return functionalInterface.cast(pregenerated);
+            }
+        }
+        return lambdafy(target, functionalInterface, initialValues);
+    }
+
+    private static Object findPregenerated(MethodHandles.Lookup lookup, MethodHandle target, Class<?> functionalInterface) {
+        MethodHandleInfo info;
+        try {
+            info = lookup.revealDirect(target);
+        } catch (IllegalArgumentException ex) {
+            // Not a direct handle
+            return null;
+        }
+        if (info.getReferenceKind() != MethodHandleInfo.REF_invokeStatic) {
+            return null;
+        }
+        Class<?> owner = info.getDeclaringClass();
+        Pregenerated p = PREGENERATED.get(owner).computeIfAbsent(info.getName() + "$" + functionalInterface.getName(),
+                k -> loadPregenerated(owner, info.getName(), functionalInterface));
+        // Some overloaded method with the same name otherwise
+        return info.getMethodType().equals(p.type) ? p.instance : null;
+    }
+
+    private static Pregenerated loadPregenerated(Class<?> owner, String methodName, Class<?> functionalInterface) {
+        String name = owner.getName() + PREGENERATED_INFIX + methodName + "$"
+                + functionalInterface.getName().replace('.', '_');
+        Class<?> generated;
+        try {
+            generated = Class.forName(name, true, owner.getClassLoader());
+        } catch (ClassNotFoundException ex) {
+            return MISSING;
+        }
+        try {
+            String descriptor = (String) generated.getField("DESCRIPTOR").get(null);
+            return new Pregenerated(MethodType.fromMethodDescriptorString(descriptor, owner.getClassLoader()),
+                    generated.getField("INSTANCE").get(null));
+        } catch (NoSuchFieldException | IllegalAccessException ex) {
+            throw new AssertionError(name + " is not a pregenerated lambda", ex);
+        }
+    }
+
+    /**
+     * Creates a factory of type (A1, A2, ...)T, like Methods.createLambdaFactory() does. The arguments get bound
+     * to the first parameters of the target, and the remaining ones must fit to the functional method.
+     *
+     * All factories for the same interface share one lambda class; only a bound handle gets created per instance.
+     */
+    static MethodHandle createLambdaFactory(MethodHandle target, Class<?> functionalInterface) {
+        MethodHandle shapeFactory = SHAPES.get(functionalInterface).computeIfAbsent(target.type(),
+                t -> createShapeFactory(t, functionalInterface));
+        return shapeFactory.bindTo(target);
+    }
+
+    /**
+     * Creates a factory of type (MethodHandle, A1, A2, ...)T for all targets of the given type.
+     */
+    private static MethodHandle createShapeFactory(MethodType targetType, Class<?> functionalInterface) {
+        MethodType functionalType = functionalMethodType(functionalInterface);
+        int captured = targetType.parameterCount() - functionalType.parameterCount();
+        if (captured < 0) {
+            throw new IllegalArgumentException(targetType + " has fewer parameters than " + functionalType);
+        }
+        MethodType bindType = MethodType.methodType(MethodHandle.class, targetType.parameterList().subList(0, captured))
+                .insertParameterTypes(0, MethodHandle.class);
+        MethodHandle bind = MethodHandles.insertArguments(BIND, 1, functionalType)
+                .asCollector(Object[].class, captured)
+                .asType(bindType);
+        return MethodHandles.filterReturnValue(bind, pooledLambdaFactory(functionalInterface));
+    }
+
+    private static MethodHandle bind(MethodHandle target, MethodType type, Object[] values) {
+        return MethodHandles.insertArguments(target, 0, values).asType(type);
+    }
+
+    /**
+     * Same as createLambdaFactory(), but the factory and its class get created only once per interface.
+     */
+    static MethodHandle pooledLambdaFactory(Class<?> functionalInterface) {
+        return POOL.get(functionalInterface);
+    }
+
+    /**
+     * Creates a factory of type (MethodHandle)T which creates instances of the functional interface. The
+     * handle given to the factory must exactly match the type of the interface's functional method.
+     *
+     * Each call spins a new lambda class; use pooledLambdaFactory() if that's not intended.
+     */
+    static MethodHandle createLambdaFactory(Class<?> functionalInterface) {
+        Method m = findFunctionalMethod(functionalInterface);
+        MethodType type = MethodType.methodType(m.getReturnType(), m.getParameterTypes());
+        MethodHandle implementation;
+        try {
+            implementation = MethodHandles.publicLookup().findVirtual(MethodHandle.class, "invokeExact", type);
+        } catch (NoSuchMethodException | IllegalAccessException ex) {
+            throw new AssertionError("invokeExact not found", ex);
+        }
+        CallSite callSite;
+        try {
+            callSite = LambdaMetafactory.metafactory(MethodHandles.lookup(), m.getName(),
+                    MethodType.methodType(functionalInterface, MethodHandle.class), type, implementation, type);
+        } catch (LambdaConversionException ex) {
+            throw new IllegalArgumentException("Cannot implement " + functionalInterface.getName(), ex);
+        }
+        return callSite.getTarget();
+    }
+
+    /**
+     * Returns the type of the single abstract method of the given interface.
+     */
+    static MethodType functionalMethodType(Class<?> functionalInterface) {
+        Method m = findFunctionalMethod(functionalInterface);
+        return MethodType.methodType(m.getReturnType(), m.getParameterTypes());
+    }
+
+    private static Method findFunctionalMethod(Class<?> functionalInterface) {
+        if (!functionalInterface.isInterface()) {
+            throw new IllegalArgumentException(functionalInterface.getName() + " is not an interface");
+        }
+        Method found = null;
+        for (Method m : functionalInterface.getMethods()) {
+            if (!Modifier.isAbstract(m.getModifiers()) || isObjectMethod(m)) {
+                continue;
+            }
+            if (found != null) {
+                throw new IllegalArgumentException(functionalInterface.getName() + " has more than one abstract method");
+            }
+            found = m;
+        }
+        if (found == null) {
+            throw new IllegalArgumentException(functionalInterface.getName() + " has no abstract method");
+        }
+        return found;
+    }
+
+    private static boolean isObjectMethod(Method m) {
+        try {
+            Object.class.getMethod(m.getName(), m.getParameterTypes());
+            return true;
+        } catch (NoSuchMethodException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * A lambda generated at build time, with the type of the method it calls.
+     */
+    private static final class Pregenerated {
+        final MethodType type;
+        final Object instance;
+
+        Pregenerated(MethodType type, Object instance) {
+            this.type = type;
+            this.instance = instance;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package org.fiolino.benchmark;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A one-time registry for parameterless handles that never takes a monitor.
+ *
+ * The first caller wins a compare-and-set and executes the target, all concurrent callers spin and then park
+ * until the result is there. Afterwards the accessor gets relinked to a constant, so that later calls cost
+ * nothing.
+ *
+ * If the target fails, its caller gets the exception, and one of the waiting callers wins the next
+ * compare-and-set and executes the target again. So each waiter retries a failing target in turn, one after
+ * the other, and a target that keeps failing runs once per concurrent caller.
+ *
+ * Created by kuli on 17.10.26.
+ */
+final class LockFreeOneTimeRegistry {
+
+    private static final int NEW = 0;
+    private static final int RUNNING = 1;
+    private static final int DONE = 2;
+
+    private static final int SPINS_BEFORE_PARKING = 100;
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+
+    private static final MethodHandle COMPUTE;
+
+    static {
+        try {
+            COMPUTE = MethodHandles.lookup().findVirtual(LockFreeOneTimeRegistry.class, "compute", MethodType.methodType(Object.class));
+        } catch (NoSuchMethodException | IllegalAccessException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    private final MethodHandle target;
+    private final MutableCallSite callSite;
+    private final AtomicInteger state = new AtomicInteger(NEW);
+    private volatile Object result;
+    private InvocationMetrics metrics = InvocationMetrics.NONE;
+
+    LockFreeOneTimeRegistry(MethodHandle target) {
+        MethodType type = target.type();
+        if (type.parameterCount() > 0) {
+            throw new IllegalArgumentException(target + " must not have parameters");
+        }
+        this.target = target.asType(type.changeReturnType(Object.class));
+        callSite = new MutableCallSite(COMPUTE.bindTo(this).asType(type));
+    }
+
+    /**
+     * Creates a handle of the same type as the target, which executes the target only once.
+     */
+    MethodHandle getAccessor() {
+        return callSite.dynamicInvoker();
+    }
+
+    /**
+     * Counts the target's execution time under the given name; see InvocationMetrics.
+     */
+    LockFreeOneTimeRegistry withMetrics(String name) {
+        metrics = InvocationMetrics.named(name);
+        return this;
+    }
+
+    /**
+     * Whether the target was executed successfully.
+     */
+    boolean isInitialized() {
+        return state.get() == DONE;
+    }
+
+    private Object compute() throws Throwable {
+        for (;;) {
+            if (state.compareAndSet(NEW, RUNNING)) {
+                return execute();
+            }
+            int spins = 0;
+            int s;
+            while ((s = state.get()) == RUNNING) {
+                if (++spins < SPINS_BEFORE_PARKING) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(PARK_NANOS);
+                }
+            }
+            if (s == DONE) {
+                return result;
+            }
+            // The target has failed, so try again
+        }
+    }
+
+    private Object execute() throws Throwable {
+        Object r;
+        long start = InvocationMetrics.startTiming();
+        try {
+            r = (Object) target.invokeExact();
+        } catch (Throwable t) {
+            state.set(NEW);
+            throw t;
+        }
+        metrics.missed(start);
+        result = r;
+        state.set(DONE);
+        callSite.setTarget(MethodHandles.constant(Object.class, r).asType(callSite.type()));
+        MutableCallSite.syncAll(new MutableCallSite[] {callSite});
+        return r;
+    }
+}
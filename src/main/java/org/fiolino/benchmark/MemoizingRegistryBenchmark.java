@@ -0,0 +1,193 @@
+package org.fiolino.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Compares the throughput of MemoizingRegistryBuilder's accessors with a single shared ConcurrentHashMap, from
+ * 1 to 64 threads.
+ *
+ * With cache=tiered, each thread first asks its own tier; with cache=shared, the thread tier is disabled, and
+ * cache=map calls computeIfAbsent. With few keys, the thread tier answers almost everything; with more keys than
+ * it holds, most lookups go through to the shared tier.
+ *
+ * testTasks runs the same lookups in short tasks instead, each on a fresh thread when executor=virtual, or on a
+ * pool of 64 reused platform threads. Fresh threads start with an empty thread tier, which makes it a cost instead
+ * of a gain. Virtual threads need Java 21 or later; on older JVMs, that parameter combination fails in its setup.
+ *
+ * Created by kuli on 17.10.26.
+ */
+@BenchmarkMode(Mode.Throughput) @Warmup(iterations = 5) @Fork(value = 1) @OutputTimeUnit(TimeUnit.MICROSECONDS) @Measurement(iterations = 10)
+@State(Scope.Benchmark)
+public class MemoizingRegistryBenchmark {
+
+    private static final int KEYS_PER_THREAD = 1 << 12;
+    private static final int TASKS = 64;
+    private static final int LOOKUPS_PER_TASK = 256;
+
+    private static final MethodHandle COMPUTE;
+
+    static {
+        try {
+            COMPUTE = lookup().findStatic(MemoizingRegistryBenchmark.class, "compute", methodType(Integer.class, Integer.class));
+        } catch (IllegalAccessException | NoSuchMethodException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    static Integer compute(Integer key) {
+        Blackhole.consumeCPU(100);
+        return key;
+    }
+
+    static Integer computeIfAbsent(ConcurrentHashMap<Integer, Integer> map, Integer key) {
+        return map.computeIfAbsent(key, MemoizingRegistryBenchmark::compute);
+    }
+
+    @Param({"tiered", "shared", "map"})
+    public String cache;
+
+    @Param({"32", "4096"})
+    public int cardinality;
+
+    private MethodHandle accessor;
+
+    @Setup
+    public void setup() throws Throwable {
+        switch (cache) {
+            case "tiered":
+                accessor = MemoizingRegistryBuilder.createFor(COMPUTE).getAccessor();
+                break;
+            case "shared":
+                accessor = MemoizingRegistryBuilder.createFor(COMPUTE).withLocalSize(0).getAccessor();
+                break;
+            case "map":
+                accessor = lookup().findStatic(MemoizingRegistryBenchmark.class, "computeIfAbsent",
+                        methodType(Integer.class, ConcurrentHashMap.class, Integer.class)).bindTo(new ConcurrentHashMap<>());
+                break;
+            default:
+                throw new IllegalArgumentException(cache);
+        }
+        for (int i=0; i < cardinality; i++) {
+            Integer v = (Integer) accessor.invokeExact((Integer) i);
+        }
+    }
+
+    /**
+     * Pre-boxed random keys, so that neither random numbers nor boxing get measured.
+     */
+    @State(Scope.Thread)
+    public static class Keys {
+        private final Integer[] keys = new Integer[KEYS_PER_THREAD];
+        private int index;
+
+        @Setup
+        public void setup(MemoizingRegistryBenchmark benchmark) {
+            Random random = new Random(ThreadLocalRandom.current().nextLong());
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = random.nextInt(benchmark.cardinality);
+            }
+        }
+
+        Integer next() {
+            return keys[index++ & (KEYS_PER_THREAD - 1)];
+        }
+
+        Integer get(int i) {
+            return keys[i & (KEYS_PER_THREAD - 1)];
+        }
+    }
+
+    @Benchmark @Threads(1)
+    public Integer test1Thread(Keys keys) throws Throwable {
+        return (Integer) accessor.invokeExact(keys.next());
+    }
+
+    @Benchmark @Threads(4)
+    public Integer test4Threads(Keys keys) throws Throwable {
+        return (Integer) accessor.invokeExact(keys.next());
+    }
+
+    @Benchmark @Threads(16)
+    public Integer test16Threads(Keys keys) throws Throwable {
+        return (Integer) accessor.invokeExact(keys.next());
+    }
+
+    @Benchmark @Threads(64)
+    public Integer test64Threads(Keys keys) throws Throwable {
+        return (Integer) accessor.invokeExact(keys.next());
+    }
+
+    @State(Scope.Benchmark)
+    public static class Tasks {
+        @Param({"platform", "virtual"})
+        public String executor;
+
+        ExecutorService service;
+
+        @Setup
+        public void setup() throws Throwable {
+            if (executor.equals("platform")) {
+                service = Executors.newFixedThreadPool(TASKS);
+            } else {
+                service = newVirtualThreadPerTaskExecutor();
+            }
+        }
+
+        @TearDown
+        public void shutdown() {
+            service.shutdownNow();
+        }
+
+        private static ExecutorService newVirtualThreadPerTaskExecutor() throws Throwable {
+            MethodHandle factory;
+            try {
+                factory = lookup().findStatic(Executors.class, "newVirtualThreadPerTaskExecutor", methodType(ExecutorService.class));
+            } catch (NoSuchMethodException ex) {
+                throw new UnsupportedOperationException("Virtual threads need Java 21, running on "
+                        + System.getProperty("java.version"), ex);
+            }
+            return (ExecutorService) factory.invokeExact();
+        }
+    }
+
+    @Benchmark @Threads(1) @OperationsPerInvocation(TASKS * LOOKUPS_PER_TASK)
+    public int testTasks(Tasks tasks, Keys keys) throws Exception {
+        List<Future<Integer>> futures = new ArrayList<>(TASKS);
+        for (int t=0; t < TASKS; t++) {
+            int offset = t * LOOKUPS_PER_TASK;
+            futures.add(tasks.service.submit(() -> {
+                int sum = 0;
+                for (int i=0; i < LOOKUPS_PER_TASK; i++) {
+                    try {
+                        sum += (Integer) accessor.invokeExact(keys.get(offset + i));
+                    } catch (RuntimeException | Error e) {
+                        throw e;
+                    } catch (Throwable ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                }
+                return sum;
+            }));
+        }
+        int sum = 0;
+        for (Future<Integer> f : futures) {
+            sum += f.get();
+        }
+        return sum;
+    }
+}
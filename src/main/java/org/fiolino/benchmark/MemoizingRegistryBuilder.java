@@ -0,0 +1,278 @@
+package org.fiolino.benchmark;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+
+/**
+ * Builds accessors that memoize the results of a pure handle per argument list, for call sites where many
+ * threads ask at the same time.
+ *
+ * Like OneTimeRegistryBuilder, the accessor has the same type as the target and executes it only once per
+ * distinct arguments, as long as no two threads miss the same arguments at the same time. There are two tiers:
+ * each thread has a small direct mapped cache of its own, which it reads and writes without any synchronization.
+ * Behind it is a shared cache in stripes, each of them an open addressing table with lock-free lookups; only
+ * inserts lock their stripe. A thread that misses its own tier but hits the shared one copies the entry over.
+ *
+ * The target is executed outside of any lock, so a slow target never blocks lookups of other arguments, and
+ * it must be free of side effects. The shared tier is never evicted.
+ *
+ * The thread tier pays off with few, long living threads that ask for the same arguments again and again. With
+ * many short living threads, like one virtual thread per task, each of them starts with an empty tier that's
+ * thrown away soon after; such call sites should use withLocalSize(0).
+ *
+ * Created by kuli on 17.10.26.
+ */
+final class MemoizingRegistryBuilder {
+
+    static final int DEFAULT_LOCAL_SIZE = 64;
+
+    private static final Object NULL = new Object();
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final MethodHandle GET;
+    private static final MethodHandle NEW_KEY;
+    private static final MethodHandle ARGUMENTS;
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            GET = lookup.findVirtual(Cache.class, "get", MethodType.methodType(Object.class, Object.class));
+            NEW_KEY = lookup.findConstructor(ArgumentKey.class, MethodType.methodType(void.class, Object[].class))
+                    .asType(MethodType.methodType(Object.class, Object[].class));
+            ARGUMENTS = lookup.findGetter(ArgumentKey.class, "arguments", Object[].class)
+                    .asType(MethodType.methodType(Object[].class, Object.class));
+        } catch (NoSuchMethodException | NoSuchFieldException | IllegalAccessException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    private final MethodHandle target;
+    private int localSize = DEFAULT_LOCAL_SIZE;
+    private int stripes = Runtime.getRuntime().availableProcessors() * 4;
+    private String metricsName;
+
+    private MemoizingRegistryBuilder(MethodHandle target) {
+        this.target = target;
+    }
+
+    /**
+     * Starts building an accessor for the given target, which may have any number of parameters.
+     */
+    static MemoizingRegistryBuilder createFor(MethodHandle target) {
+        return new MemoizingRegistryBuilder(target);
+    }
+
+    /**
+     * The number of entries per thread, rounded up to a power of two; 0 disables the thread tier.
+     */
+    MemoizingRegistryBuilder withLocalSize(int localSize) {
+        if (localSize < 0) {
+            throw new IllegalArgumentException("Local size must not be negative: " + localSize);
+        }
+        this.localSize = localSize == 0 ? 0 : Integer.highestOneBit(localSize * 2 - 1);
+        return this;
+    }
+
+    /**
+     * The number of stripes of the shared tier, rounded up to a power of two.
+     */
+    MemoizingRegistryBuilder withStripes(int stripes) {
+        if (stripes <= 0) {
+            throw new IllegalArgumentException("Stripes must be positive: " + stripes);
+        }
+        this.stripes = stripes;
+        return this;
+    }
+
+    /**
+     * Counts hits, misses and the target's execution times under the given name; see InvocationMetrics.
+     */
+    MemoizingRegistryBuilder withMetrics(String name) {
+        metricsName = name;
+        return this;
+    }
+
+    /**
+     * Creates a handle of the same type as the target, which returns the memoized value for its arguments.
+     * Every call creates a new, empty cache.
+     */
+    MethodHandle getAccessor() {
+        MethodType type = target.type();
+        int n = type.parameterCount();
+        InvocationMetrics metrics = metricsName == null ? InvocationMetrics.NONE : InvocationMetrics.named(metricsName);
+        if (n == 1) {
+            Cache cache = new Cache(target.asType(MethodType.methodType(Object.class, Object.class)), localSize,
+                    stripes, metrics);
+            return GET.bindTo(cache).asType(type);
+        }
+        // Several parameters: the cache key is an ArgumentKey, which the target gets spread again
+        MethodHandle spread = target.asSpreader(Object[].class, n).asType(MethodType.methodType(Object.class, Object[].class));
+        Cache cache = new Cache(MethodHandles.filterArguments(spread, 0, ARGUMENTS), localSize, stripes, metrics);
+        return MethodHandles.collectArguments(GET.bindTo(cache), 0, NEW_KEY.asCollector(Object[].class, n)).asType(type);
+    }
+
+    private static int spread(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Cache {
+        private final MethodHandle target;
+        private final ThreadLocal<Object[]> local;
+        private final int localMask;
+        private final Stripe[] shared;
+        private final int stripeMask;
+        private final InvocationMetrics metrics;
+
+        Cache(MethodHandle target, int localSize, int stripes, InvocationMetrics metrics) {
+            this.target = target;
+            this.metrics = metrics;
+            if (localSize == 0) {
+                local = null;
+                localMask = 0;
+            } else {
+                // Keys at even, values at odd indexes
+                local = ThreadLocal.withInitial(() -> new Object[localSize * 2]);
+                localMask = localSize - 1;
+            }
+            int n = Integer.highestOneBit(stripes * 2 - 1);
+            shared = new Stripe[n];
+            stripeMask = n - 1;
+            for (int i = 0; i < n; i++) {
+                shared[i] = new Stripe();
+            }
+        }
+
+        Object get(Object key) throws Throwable {
+            Object k = key == null ? NULL : key;
+            int hash = spread(k.hashCode());
+            Object[] slots = null;
+            int slot = 0;
+            if (local != null) {
+                slots = local.get();
+                slot = (hash & localMask) << 1;
+                Object cachedKey = slots[slot];
+                if (cachedKey == k || cachedKey != null && cachedKey.equals(k)) {
+                    if (InvocationMetrics.enabled()) {
+                        metrics.hit();
+                    }
+                    return unwrap(slots[slot + 1]);
+                }
+            }
+            Stripe stripe = shared[(hash >>> 16) & stripeMask];
+            Object value = stripe.lookup(k, hash);
+            if (value == null) {
+                long start = InvocationMetrics.startTiming();
+                Object computed = (Object) target.invokeExact(key);
+                metrics.missed(start);
+                value = stripe.insert(k, hash, computed == null ? NULL : computed);
+            } else if (InvocationMetrics.enabled()) {
+                metrics.hit();
+            }
+            if (slots != null) {
+                slots[slot] = k;
+                slots[slot + 1] = value;
+            }
+            return unwrap(value);
+        }
+
+        private static Object unwrap(Object value) {
+            return value == NULL ? null : value;
+        }
+    }
+
+    /**
+     * An open addressing table with linear probing. Lookups read the slots without any barrier: entries only
+     * have final fields, so a published one is always complete, and a slot that still looks empty only leads
+     * to the synchronized insert, which looks again. A resize publishes a complete new array.
+     */
+    private static final class Stripe {
+        private volatile Entry[] table = new Entry[INITIAL_CAPACITY];
+        private int size;
+
+        Object lookup(Object key, int hash) {
+            Entry[] t = table;
+            int mask = t.length - 1;
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                Entry e = t[i];
+                if (e == null) {
+                    return null;
+                }
+                if (e.hash == hash && (e.key == key || e.key.equals(key))) {
+                    return e.value;
+                }
+            }
+        }
+
+        /**
+         * Inserts the value unless another thread was faster, and returns the one that's cached now.
+         */
+        synchronized Object insert(Object key, int hash, Object value) {
+            Object existing = lookup(key, hash);
+            if (existing != null) {
+                return existing;
+            }
+            Entry[] t = table;
+            if (size >= t.length * 3 / 4) {
+                Entry[] grown = new Entry[t.length * 2];
+                for (Entry e : t) {
+                    if (e != null) {
+                        insert(grown, e);
+                    }
+                }
+                t = grown;
+                table = t;
+            }
+            insert(t, new Entry(key, hash, value));
+            size++;
+            return value;
+        }
+
+        private static void insert(Entry[] t, Entry e) {
+            int mask = t.length - 1;
+            int i = e.hash & mask;
+            while (t[i] != null) {
+                i = (i + 1) & mask;
+            }
+            t[i] = e;
+        }
+    }
+
+    private static final class Entry {
+        final Object key;
+        final int hash;
+        final Object value;
+
+        Entry(Object key, int hash, Object value) {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+        }
+    }
+
+    /**
+     * The arguments of a handle with other than one parameter, as a cache key.
+     */
+    private static final class ArgumentKey {
+        final Object[] arguments;
+        private final int hash;
+
+        ArgumentKey(Object[] arguments) {
+            this.arguments = arguments;
+            hash = Arrays.hashCode(arguments);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof ArgumentKey && hash == ((ArgumentKey) obj).hash
+                    && Arrays.equals(arguments, ((ArgumentKey) obj).arguments);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package org.fiolino.benchmark;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A one-time registry for handles with one parameter, which never holds a monitor while the target executes.
+ *
+ * OneTimeRegistryBuilder and ConcurrentHashMap.computeIfAbsent() execute the target inside a synchronized
+ * block. A virtual thread that blocks in there, or waits to enter it, pins its carrier thread until the target
+ * is done, so a slow initialization can stall all virtual threads of a small carrier pool. Here, the first
+ * caller for a key only puts an empty slot into the map and executes the target afterwards; concurrent callers
+ * for the same key wait on the slot's latch, which parks them and frees their carriers.
+ *
+ * Parking isn't free either: each waiting thread costs an unmount and a remount. With a single carrier, a pinned
+ * one is cheaper, since it keeps the waiters from starting until the value is there.
+ *
+ * If the target fails, its slot is removed and the next caller tries again.
+ *
+ * Created by kuli on 17.10.26.
+ */
+final class ParkingOneTimeRegistry {
+
+    private static final Object NULL = new Object();
+
+    private static final MethodHandle GET;
+
+    static {
+        try {
+            GET = MethodHandles.lookup().findVirtual(ParkingOneTimeRegistry.class, "get", MethodType.methodType(Object.class, Object.class));
+        } catch (NoSuchMethodException | IllegalAccessException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    private final MethodHandle target;
+    private final MethodType type;
+    private final ConcurrentHashMap<Object, Slot> slots = new ConcurrentHashMap<>();
+    private InvocationMetrics metrics = InvocationMetrics.NONE;
+
+    ParkingOneTimeRegistry(MethodHandle target) {
+        type = target.type();
+        if (type.parameterCount() != 1) {
+            throw new IllegalArgumentException(target + " must have exactly one parameter");
+        }
+        this.target = target.asType(MethodType.methodType(Object.class, Object.class));
+    }
+
+    /**
+     * Creates an accessor for the target that executes it only once, without pinning virtual threads. Handles
+     * without parameters get a LockFreeOneTimeRegistry, those with one parameter a ParkingOneTimeRegistry.
+     */
+    static MethodHandle createAccessorFor(MethodHandle target) {
+        if (target.type().parameterCount() == 0) {
+            return new LockFreeOneTimeRegistry(target).getAccessor();
+        }
+        return new ParkingOneTimeRegistry(target).getAccessor();
+    }
+
+    /**
+     * Creates a handle of the same type as the target, which returns the cached value for its argument.
+     */
+    MethodHandle getAccessor() {
+        return GET.bindTo(this).asType(type);
+    }
+
+    /**
+     * Counts hits, misses and the target's execution times under the given name; see InvocationMetrics.
+     */
+    ParkingOneTimeRegistry withMetrics(String name) {
+        metrics = InvocationMetrics.named(name);
+        return this;
+    }
+
+    private Object get(Object key) throws Throwable {
+        Object k = key == null ? NULL : key;
+        Slot s = slots.get(k);
+        if (s != null) {
+            Object value = s.value;
+            if (value != null) {
+                if (InvocationMetrics.enabled()) {
+                    metrics.hit();
+                }
+                return value == NULL ? null : value;
+            }
+        }
+        for (;;) {
+            if (s == null) {
+                Slot mine = new Slot();
+                s = slots.putIfAbsent(k, mine);
+                if (s == null) {
+                    return execute(key, k, mine);
+                }
+            }
+            s.done.await();
+            Object value = s.value;
+            if (value != null) {
+                return value == NULL ? null : value;
+            }
+            // The target has failed, so try again
+            s = slots.get(k);
+        }
+    }
+
+    private Object execute(Object key, Object k, Slot slot) throws Throwable {
+        long start = InvocationMetrics.startTiming();
+        try {
+            Object value = (Object) target.invokeExact(key);
+            metrics.missed(start);
+            slot.value = value == null ? NULL : value;
+            return value;
+        } catch (Throwable t) {
+            slots.remove(k, slot);
+            throw t;
+        } finally {
+            slot.done.countDown();
+        }
+    }
+
+    private static final class Slot {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile Object value;
+    }
+}
@@ -0,0 +1,122 @@
+package org.fiolino.benchmark;
+
+import org.fiolino.common.reflection.Methods;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+import java.util.function.IntUnaryOperator;
+import java.util.function.ToIntFunction;
+
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Runs a million records through parse, validate and transform, and sums up the results.
+ *
+ * testFused calls one lambda from Pipelines.lambdafy(); testChained calls three lambdas from Methods.lambdafy()
+ * per record, and testStream uses an IntStream with method references. testDirect calls the static methods
+ * directly, as the baseline. The score is in records per second; with the GC profiler of BenchmarkMain, the
+ * allocation per record shows as well.
+ *
+ * Created by kuli on 17.10.26.
+ */
+@BenchmarkMode(Mode.Throughput) @Warmup(iterations = 5) @Fork(value = 1) @OutputTimeUnit(TimeUnit.SECONDS) @Measurement(iterations = 10)
+@State(Scope.Benchmark)
+public class PipelineBenchmark {
+
+    private static final int RECORDS = 1_000_000;
+
+    private static final ToIntFunction<String> FUSED;
+    private static final ToIntFunction<String> PARSE;
+    private static final IntConsumer VALIDATE;
+    private static final IntUnaryOperator TRANSFORM;
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodHandle parse, validate, transform;
+        try {
+            parse = lookup.findStatic(PipelineBenchmark.class, "parse", methodType(int.class, String.class));
+            validate = lookup.findStatic(PipelineBenchmark.class, "validate", methodType(void.class, int.class));
+            transform = lookup.findStatic(PipelineBenchmark.class, "transform", methodType(int.class, int.class));
+        } catch (IllegalAccessException | NoSuchMethodException ex) {
+            throw new AssertionError(ex);
+        }
+        @SuppressWarnings("unchecked")
+        ToIntFunction<String> fused = Pipelines.lambdafy(ToIntFunction.class, parse, validate, transform);
+        @SuppressWarnings("unchecked")
+        ToIntFunction<String> parser = Methods.lambdafy(lookup, parse, ToIntFunction.class);
+        FUSED = fused;
+        PARSE = parser;
+        VALIDATE = Methods.lambdafy(lookup, validate, IntConsumer.class);
+        TRANSFORM = Methods.lambdafy(lookup, transform, IntUnaryOperator.class);
+    }
+
+    static int parse(String record) {
+        return Integer.parseInt(record);
+    }
+
+    static void validate(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative: " + value);
+        }
+    }
+
+    static int transform(int value) {
+        return value * 3 + 1;
+    }
+
+    private String[] records;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        records = new String[RECORDS];
+        for (int i=0; i < RECORDS; i++) {
+            records[i] = String.valueOf(random.nextInt(1_000_000));
+        }
+    }
+
+    @Benchmark @OperationsPerInvocation(RECORDS) @AllocationFree
+    public int testDirect() {
+        int sum = 0;
+        for (String r : records) {
+            int value = parse(r);
+            validate(value);
+            sum += transform(value);
+        }
+        return sum;
+    }
+
+    @Benchmark @OperationsPerInvocation(RECORDS) @AllocationFree
+    public int testFused() {
+        int sum = 0;
+        for (String r : records) {
+            sum += FUSED.applyAsInt(r);
+        }
+        return sum;
+    }
+
+    @Benchmark @OperationsPerInvocation(RECORDS)
+    public int testChained() {
+        int sum = 0;
+        for (String r : records) {
+            int value = PARSE.applyAsInt(r);
+            VALIDATE.accept(value);
+            sum += TRANSFORM.applyAsInt(value);
+        }
+        return sum;
+    }
+
+    @Benchmark @OperationsPerInvocation(RECORDS)
+    public int testStream() {
+        return Arrays.stream(records)
+                .mapToInt(PipelineBenchmark::parse)
+                .peek(PipelineBenchmark::validate)
+                .map(PipelineBenchmark::transform)
+                .sum();
+    }
+}
@@ -0,0 +1,72 @@
+package org.fiolino.benchmark;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Fuses a sequence of handles into a single one, so that a chain like parse, validate, transform costs one
+ * interface call when lambdafied instead of one per stage.
+ *
+ * The first stage gets the pipeline's arguments, and each following one the result of the stages before. A stage
+ * with one parameter replaces that result with its own (filterReturnValue), unless it returns void; then it's a
+ * check, like a validation that throws, and the result is passed on unchanged. A stage with more parameters gets
+ * the result followed by all the pipeline's arguments (foldArguments).
+ * Each stage's first parameter gets adapted to the previous stage's return type, including boxing and casts.
+ *
+ * The fused handle isn't a direct one, so lambdafy() uses Lambdas instead of Methods.lambdafy(), which would
+ * fall back to a proxy.
+ *
+ * Created by kuli on 17.10.26.
+ */
+final class Pipelines {
+
+    private Pipelines() {
+        throw new AssertionError("Static class");
+    }
+
+    /**
+     * Fuses all stages into one handle with the first stage's parameters and the last stage's return type, or the
+     * previous one's if the last is a check.
+     */
+    static MethodHandle fuse(MethodHandle first, MethodHandle... stages) {
+        MethodHandle pipeline = first;
+        for (MethodHandle stage : stages) {
+            pipeline = append(pipeline, stage);
+        }
+        return pipeline;
+    }
+
+    /**
+     * Fuses all stages and creates one instance of the given functional interface that calls them.
+     */
+    static <T> T lambdafy(Class<T> functionalInterface, MethodHandle first, MethodHandle... stages) {
+        return Lambdas.lambdafy(fuse(first, stages), functionalInterface);
+    }
+
+    private static MethodHandle append(MethodHandle pipeline, MethodHandle stage) {
+        MethodType pipelineType = pipeline.type();
+        Class<?> previous = pipelineType.returnType();
+        if (previous == void.class) {
+            throw new IllegalArgumentException(pipeline + " returns nothing to pass on to " + stage);
+        }
+        MethodType stageType = stage.type();
+        int n = stageType.parameterCount();
+        if (n == 0) {
+            throw new IllegalArgumentException(stage + " doesn't accept the result of " + pipeline);
+        }
+        MethodHandle adapted = stage.asType(stageType.changeParameterType(0, previous));
+        if (n == 1) {
+            if (stageType.returnType() == void.class) {
+                adapted = MethodHandles.foldArguments(MethodHandles.identity(previous), adapted);
+            }
+            return MethodHandles.filterReturnValue(pipeline, adapted);
+        }
+        if (n - 1 != pipelineType.parameterCount()) {
+            throw new IllegalArgumentException(stage + " must accept the result of " + pipeline
+                    + " and the arguments " + pipelineType.parameterList());
+        }
+        adapted = adapted.asType(pipelineType.changeReturnType(stageType.returnType()).insertParameterTypes(0, previous));
+        return MethodHandles.foldArguments(adapted, pipeline);
+    }
+}
@@ -0,0 +1,23 @@
+package org.fiolino.benchmark;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a static method whose lambdas for the given interfaces get generated at build time.
+ *
+ * The LambdafyProcessor generates a class per interface that calls the method directly. Lambdas.lambdafy()
+ * returns its instance instead of spinning a new class, if it gets a direct handle of the method.
+ *
+ * Created by kuli on 17.10.26.
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.METHOD)
+@interface PregeneratedLambda {
+    /**
+     * The functional interfaces to implement.
+     */
+    Class<?>[] value();
+}
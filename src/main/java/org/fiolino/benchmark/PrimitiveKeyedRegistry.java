@@ -0,0 +1,297 @@
+package org.fiolino.benchmark;
+
+import org.fiolino.common.reflection.OneTimeRegistryBuilder;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A one-time registry for handles with a single int or long parameter, which caches per argument without
+ * boxing the key.
+ *
+ * Keys from 0 to the dense size get their value directly from an array slot. All other keys live in an open
+ * addressing table with linear probing. Lookups never lock: a slot counts as taken only once its value is
+ * visible, and the key is written before that.
+ *
+ * The target never executes under a lock. The first caller for a key claims its slot with a placeholder, by a
+ * compare-and-set on the dense slot or by an insert into the table, and replaces it with the value afterwards;
+ * concurrent callers for the same key wait on the placeholder's latch, which parks virtual threads instead of
+ * pinning them. Only the table's inserts, replacements and resizes are synchronized, and a resize publishes a
+ * complete new table. If the target fails, its placeholder is marked as failed, and the next caller tries again.
+ * A target must not ask the registry for its own key, since it would wait for itself.
+ *
+ * Created by kuli on 17.10.26.
+ */
+final class PrimitiveKeyedRegistry {
+
+    static final int DEFAULT_DENSE_SIZE = 1024;
+
+    private static final Object NULL = new Object();
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final MethodHandle GET;
+
+    static {
+        try {
+            GET = MethodHandles.lookup().findVirtual(PrimitiveKeyedRegistry.class, "get", MethodType.methodType(Object.class, long.class));
+        } catch (NoSuchMethodException | IllegalAccessException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    private final MethodHandle target;
+    private final MethodType type;
+    private final AtomicReferenceArray<Object> dense;
+    private volatile Table table = new Table(INITIAL_CAPACITY);
+    private InvocationMetrics metrics = InvocationMetrics.NONE;
+
+    PrimitiveKeyedRegistry(MethodHandle target) {
+        this(target, DEFAULT_DENSE_SIZE);
+    }
+
+    PrimitiveKeyedRegistry(MethodHandle target, int denseSize) {
+        type = target.type();
+        if (!isPrimitiveKeyed(type)) {
+            throw new IllegalArgumentException(target + " must have exactly one integral parameter");
+        }
+        this.target = MethodHandles.explicitCastArguments(target, MethodType.methodType(Object.class, long.class));
+        dense = new AtomicReferenceArray<>(denseSize);
+    }
+
+    /**
+     * Creates an accessor for the target that caches per argument. Handles with a single int, long, short,
+     * char or byte parameter get a PrimitiveKeyedRegistry, all others a OneTimeRegistryBuilder.
+     */
+    static MethodHandle createAccessorFor(MethodHandle target) {
+        if (isPrimitiveKeyed(target.type())) {
+            return new PrimitiveKeyedRegistry(target).getAccessor();
+        }
+        return OneTimeRegistryBuilder.createFor(target).getAccessor();
+    }
+
+    /**
+     * Same as createAccessorFor(target), but counts the accessor's misses and initialization times under the
+     * given name. A OneTimeRegistryBuilder doesn't report its hits, so only its target executions get counted.
+     */
+    static MethodHandle createAccessorFor(MethodHandle target, String metricsName) {
+        if (isPrimitiveKeyed(target.type())) {
+            return new PrimitiveKeyedRegistry(target).withMetrics(metricsName).getAccessor();
+        }
+        MethodHandle timed = InvocationMetrics.named(metricsName).timeInitializations(target);
+        return OneTimeRegistryBuilder.createFor(timed).getAccessor();
+    }
+
+    private static boolean isPrimitiveKeyed(MethodType type) {
+        if (type.parameterCount() != 1) {
+            return false;
+        }
+        Class<?> p = type.parameterType(0);
+        return p == int.class || p == long.class || p == short.class || p == char.class || p == byte.class;
+    }
+
+    /**
+     * Creates a handle of the same type as the target, which returns the cached value for its argument.
+     */
+    MethodHandle getAccessor() {
+        return GET.bindTo(this).asType(type);
+    }
+
+    /**
+     * Counts hits, misses and the target's execution times under the given name; see InvocationMetrics.
+     */
+    PrimitiveKeyedRegistry withMetrics(String name) {
+        metrics = InvocationMetrics.named(name);
+        return this;
+    }
+
+    private Object get(long key) throws Throwable {
+        Object value = isDense(key) ? dense.get((int) key) : table.lookup(key);
+        if (value == null || value instanceof Placeholder) {
+            value = compute(key);
+        } else if (InvocationMetrics.enabled()) {
+            metrics.hit();
+        }
+        return value == NULL ? null : value;
+    }
+
+    private boolean isDense(long key) {
+        return key >= 0 && key < dense.length();
+    }
+
+    private Object compute(long key) throws Throwable {
+        for (;;) {
+            Placeholder mine = new Placeholder();
+            Object value = isDense(key) ? claimDense((int) key, mine) : claimInTable(key, mine);
+            if (value == null) {
+                return execute(key, mine);
+            }
+            if (value instanceof Placeholder) {
+                value = ((Placeholder) value).await();
+                if (value == Placeholder.FAILED) {
+                    // The target has failed, so try again
+                    continue;
+                }
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Puts the placeholder into the slot, unless there's a value or another pending placeholder already,
+     * which gets returned then.
+     */
+    private Object claimDense(int key, Placeholder placeholder) {
+        for (;;) {
+            Object value = dense.get(key);
+            if (value != null && !Placeholder.hasFailed(value)) {
+                return value;
+            }
+            if (dense.compareAndSet(key, value, placeholder)) {
+                return null;
+            }
+        }
+    }
+
+    private synchronized Object claimInTable(long key, Placeholder placeholder) {
+        Table t = table;
+        int i = t.indexOf(key);
+        if (i >= 0) {
+            Object value = t.values.get(i);
+            if (!Placeholder.hasFailed(value)) {
+                return value;
+            }
+            t.values.set(i, placeholder);
+            return null;
+        }
+        if (t.isFull()) {
+            t = t.grow();
+            table = t;
+        }
+        t.insert(key, placeholder);
+        return null;
+    }
+
+    private synchronized void replaceInTable(long key, Object value) {
+        Table t = table;
+        t.values.set(t.indexOf(key), value);
+    }
+
+    private Object execute(long key, Placeholder placeholder) throws Throwable {
+        long start = InvocationMetrics.startTiming();
+        Object value = Placeholder.FAILED;
+        try {
+            value = wrap((Object) target.invokeExact(key));
+            metrics.missed(start);
+            if (isDense(key)) {
+                dense.set((int) key, value);
+            } else {
+                replaceInTable(key, value);
+            }
+            return value;
+        } finally {
+            placeholder.complete(value);
+        }
+    }
+
+    private static Object wrap(Object value) {
+        return value == null ? NULL : value;
+    }
+
+    private static int spread(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static final class Table {
+        private final long[] keys;
+        private final AtomicReferenceArray<Object> values;
+        private final int mask;
+        private int size;
+
+        Table(int capacity) {
+            keys = new long[capacity];
+            values = new AtomicReferenceArray<>(capacity);
+            mask = capacity - 1;
+        }
+
+        Object lookup(long key) {
+            for (int i = spread(key) & mask; ; i = (i + 1) & mask) {
+                Object value = values.get(i);
+                if (value == null) {
+                    return null;
+                }
+                if (keys[i] == key) {
+                    return value;
+                }
+            }
+        }
+
+        // Only called while synchronized
+        int indexOf(long key) {
+            for (int i = spread(key) & mask; ; i = (i + 1) & mask) {
+                if (values.get(i) == null) {
+                    return -1;
+                }
+                if (keys[i] == key) {
+                    return i;
+                }
+            }
+        }
+
+        // Only called while synchronized
+        void insert(long key, Object value) {
+            int i = spread(key) & mask;
+            while (values.get(i) != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values.set(i, value);
+            size++;
+        }
+
+        boolean isFull() {
+            return size >= (mask + 1) * 3 / 4;
+        }
+
+        Table grow() {
+            Table t = new Table((mask + 1) * 2);
+            for (int i = 0; i <= mask; i++) {
+                Object value = values.get(i);
+                if (value != null) {
+                    t.insert(keys[i], value);
+                }
+            }
+            return t;
+        }
+    }
+
+    /**
+     * Stands in for a value while its target executes.
+     */
+    private static final class Placeholder {
+        static final Object FAILED = new Object();
+
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Object value;
+
+        static boolean hasFailed(Object slot) {
+            return slot instanceof Placeholder && ((Placeholder) slot).value == FAILED;
+        }
+
+        void complete(Object result) {
+            value = result;
+            done.countDown();
+        }
+
+        /**
+         * Waits until the target is done, and returns its value, or FAILED.
+         */
+        Object await() throws InterruptedException {
+            done.await();
+            return value;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package org.fiolino.benchmark;
+
+import org.fiolino.common.reflection.OneTimeRegistryBuilder;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Looks up int keys through registries that box their keys and through a PrimitiveKeyedRegistry.
+ *
+ * All keys get computed during setup, so only hits are measured. The setup prints how much heap each registry
+ * retains for its keys.
+ *
+ * Created by kuli on 17.10.26.
+ */
+@BenchmarkMode(Mode.AverageTime) @Warmup(iterations = 5) @Fork(value = 1, jvmArgsAppend = "-Xmx4g") @OutputTimeUnit(TimeUnit.NANOSECONDS) @Measurement(iterations = 10)
+@State(Scope.Benchmark)
+public class PrimitiveKeyedRegistryBenchmark {
+
+    private static final int KEYS = 1 << 16;
+
+    private static final Object VALUE = new Object();
+    private static final MethodHandle COMPUTE;
+
+    static {
+        try {
+            COMPUTE = lookup().findStatic(PrimitiveKeyedRegistryBenchmark.class, "compute", methodType(Object.class, int.class));
+        } catch (IllegalAccessException | NoSuchMethodException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    static Object compute(int key) {
+        return VALUE;
+    }
+
+    public enum Kind {
+        PRIMITIVE {
+            @Override
+            MethodHandle createAccessor() {
+                return PrimitiveKeyedRegistry.createAccessorFor(COMPUTE);
+            }
+        },
+        ONE_TIME_REGISTRY {
+            @Override
+            MethodHandle createAccessor() {
+                return OneTimeRegistryBuilder.createFor(COMPUTE).getAccessor();
+            }
+        },
+        CONCURRENT_HASH_MAP {
+            @Override
+            MethodHandle createAccessor() {
+                MethodHandle computeIfAbsent;
+                try {
+                    computeIfAbsent = MethodHandles.publicLookup().findVirtual(ConcurrentHashMap.class, "computeIfAbsent",
+                            methodType(Object.class, Object.class, Function.class));
+                } catch (NoSuchMethodException | IllegalAccessException ex) {
+                    throw new AssertionError(ex);
+                }
+                Function<Object, Object> function = k -> compute((Integer) k);
+                MethodHandle h = MethodHandles.insertArguments(computeIfAbsent, 2, function);
+                return h.bindTo(new ConcurrentHashMap<>()).asType(COMPUTE.type());
+            }
+        };
+
+        abstract MethodHandle createAccessor();
+    }
+
+    @Param
+    public Kind kind;
+
+    @Param({"1000", "100000", "10000000"})
+    public int cardinality;
+
+    private MethodHandle accessor;
+    private final int[] keys = new int[KEYS];
+    private int index;
+
+    @Setup
+    public void setup() throws Throwable {
+        Random random = new Random(0);
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = random.nextInt(cardinality);
+        }
+
+        long before = usedHeap();
+        accessor = kind.createAccessor();
+        for (int i = 0; i < cardinality; i++) {
+            Object ignored = (Object) accessor.invokeExact(i);
+        }
+        long retained = usedHeap() - before;
+        System.out.println();
+        System.out.println(kind + " retains " + retained / 1024 + " KB for " + cardinality + " keys");
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @Benchmark
+    public Object testLookup() throws Throwable {
+        return (Object) accessor.invokeExact(keys[index++ & (KEYS - 1)]);
+    }
+}
@@ -0,0 +1,305 @@
+package org.fiolino.benchmark;
+
+import org.fiolino.common.reflection.Methods;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+import java.util.function.*;
+
+/**
+ * Calls lambdafied handles through every primitive functional interface of java.util.function.
+ *
+ * The Lambdas variant must not allocate at all, because its handle gets adapted to the exact primitive type
+ * of the functional method.
+ *
+ * Created by kuli on 17.10.26.
+ */
+@BenchmarkMode(Mode.AverageTime) @Warmup(iterations = 5) @Fork(value = 1) @OutputTimeUnit(TimeUnit.NANOSECONDS) @Measurement(iterations = 5)
+@State(Scope.Benchmark)
+public class PrimitiveLambdaBenchmark {
+
+    static int intValue = 2;
+    static long longValue = 2L;
+    static double doubleValue = 2.0;
+    static Object objectValue = "2";
+
+    /**
+     * One constant per interface. Each knows how to call its interface, so that the call site stays monomorphic.
+     */
+    public enum Shape {
+        BOOLEAN_SUPPLIER(BooleanSupplier.class) {
+            @Override
+            void call(Object lambda, Blackhole blackhole) {
+                blackhole.consume(((BooleanSupplier) lambda).getAsBoolean());
+            }
+        },
+        DOUBLE_BINARY_OPERATOR(DoubleBinaryOperator.class) {
+            @Override
+            void call(Object lambda, Blackhole blackhole) {
+                blackhole.consume(((DoubleBinaryOperator) lambda).applyAsDouble(doubleValue, doubleValue));
+            }
+        },
+        DOUBLE_CONSUMER(DoubleConsumer.class) {
+            @Override
+            void call(Object lambda, Blackhole blackhole) {
+                ((DoubleConsumer) lambda).accept(doubleValue);
+            }
+        },
+        DOUBLE_FUNCTION(DoubleFunction.class) {
+            @Override
+            void call(Object lambda, Blackhole blackhole) {
+                blackhole.consume(((DoubleFunction<?>) lambda).apply(doubleValue));
+            }
+        },
+        DOUBLE_PREDICATE(DoublePredicate.class) {
+            @Override
+            void call(Object lambda, Blackhole blackhole) {
+                blackhole.consume(((DoublePredicate) lambda).test(doubleValue));
+            }
+        },
+        DOUBLE_SUPPLIER(DoubleSupplier.class) {
+            @Override
+            void call(Object lambda, Blackhole blackhole) {
+                blackhole.consume(((DoubleSupplier) lambda).getAsDouble());
+            }
+        },
+        DOUBLE_TO_INT_FUNCTION(DoubleToIntFunction.class) {
+            @Override
+            void call(Object lambda, Blackhole blackhole) {
+                blackhole.consume(((DoubleToIntFunction) lambda).applyAsInt(doubleValue));
+            }
+        },
+        DOUBLE_TO_LONG_FUNCTION(DoubleToLongFunction.class) {
+            @Override
+            void call(Object lambda, Blackhole blackhole) {
+                blackhole.consume(((DoubleToLongFunction) lambda).applyAsLong(doubleValue));
+            }
+        },
+        DOUBLE_UNARY_OPERATOR(DoubleUnaryOperator.class) {
+            @Override
+            void call(Object lambda, Blackhole blackhole) {
+                blackhole.consume(((DoubleUnaryOperator) lambda).applyAsDouble(doubleValue));
+            }
+        },
+        INT_BINARY_OPERATOR(IntBinaryOperator.class) {
+            @Override
+            void call(Object lambda, Blackhole blackhole) {
+                blackhole.consume(((IntBinaryOperator) lambda).applyAsInt(intValue, intValue));
+            }
+        },
+        INT_CONSUMER(IntConsumer.class) {
+            @Override
+            void call(Object lambda, Blackhole blackhole) {
+                ((IntConsumer) lambda).accept(intValue);
+            }
+        },
+        INT_FUNCTION(IntFunction.class) {
+            @Override
+            void call(Object lambda, Blackhole blackhole) {
+                blackhole.consume(((IntFunction<?>) lambda).apply(intValue));
+            }
+        },
+        INT_PREDICATE(IntPredicate.class) {
+            @Override
+            void call(Object lambda, Blackhole blackhole) {
+                blackhole.consume(((IntPredicate) lambda).test(intValue));
+            }
+        },
+        INT_SUPPLIER(IntSupplier.class) {
+            @Override
+            void call(Object lambda, Blackhole blackhole) {
+                blackhole.consume(((IntSupplier) lambda).getAsInt());
+            }
+        },
+        INT_TO_DOUBLE_FUNCTION(IntToDoubleFunction.class) {
+            @Override
+            void call(Object lambda, Blackhole blackhole) {
+                blackhole.consume(((IntToDoubleFunction) lambda).applyAsDouble(intValue));
+            }
+        },
+        INT_TO_LONG_FUNCTION(IntToLongFunction.class) {
+            @Override
+            void call(Object lambda, Blackhole blackhole) {
+                blackhole.consume(((IntToLongFunction) lambda).applyAsLong(intValue));
+            }
+        },
+        INT_UNARY_OPERATOR(IntUnaryOperator.class) {
+            @Override
+            void call(Object lambda, Blackhole blackhole) {
+                blackhole.consume(((IntUnaryOperator) lambda).applyAsInt(intValue));
+            }
+        },
+        LONG_BINARY_OPERATOR(LongBinaryOperator.class) {
+            @Override
+            void call(Object lambda, Blackhole blackhole) {
+                blackhole.consume(((LongBinaryOperator) lambda).applyAsLong(longValue, longValue));
+            }
+        },
+        LONG_CONSUMER(LongConsumer.class) {
+            @Override
+            void call(Object lambda, Blackhole blackhole) {
+                ((LongConsumer) lambda).accept(longValue);
+            }
+        },
+        LONG_FUNCTION(LongFunction.class) {
+            @Override
+            void call(Object lambda, Blackhole blackhole) {
+                blackhole.consume(((LongFunction<?>) lambda).apply(longValue));
+            }
+        },
+        LONG_PREDICATE(LongPredicate.class) {
+            @Override
+            void call(Object lambda, Blackhole blackhole) {
+                blackhole.consume(((LongPredicate) lambda).test(longValue));
+            }
+        },
+        LONG_SUPPLIER(LongSupplier.class) {
+            @Override
+            void call(Object lambda, Blackhole blackhole) {
+                blackhole.consume(((LongSupplier) lambda).getAsLong());
+            }
+        },
+        LONG_TO_DOUBLE_FUNCTION(LongToDoubleFunction.class) {
+            @Override
+            void call(Object lambda, Blackhole blackhole) {
+                blackhole.consume(((LongToDoubleFunction) lambda).applyAsDouble(longValue));
+            }
+        },
+        LONG_TO_INT_FUNCTION(LongToIntFunction.class) {
+            @Override
+            void call(Object lambda, Blackhole blackhole) {
+                blackhole.consume(((LongToIntFunction) lambda).applyAsInt(longValue));
+            }
+        },
+        LONG_UNARY_OPERATOR(LongUnaryOperator.class) {
+            @Override
+            void call(Object lambda, Blackhole blackhole) {
+                blackhole.consume(((LongUnaryOperator) lambda).applyAsLong(longValue));
+            }
+        },
+        OBJ_DOUBLE_CONSUMER(ObjDoubleConsumer.class) {
+            @Override
+            @SuppressWarnings("unchecked")
+            void call(Object lambda, Blackhole blackhole) {
+                ((ObjDoubleConsumer<Object>) lambda).accept(objectValue, doubleValue);
+            }
+        },
+        OBJ_INT_CONSUMER(ObjIntConsumer.class) {
+            @Override
+            @SuppressWarnings("unchecked")
+            void call(Object lambda, Blackhole blackhole) {
+                ((ObjIntConsumer<Object>) lambda).accept(objectValue, intValue);
+            }
+        },
+        OBJ_LONG_CONSUMER(ObjLongConsumer.class) {
+            @Override
+            @SuppressWarnings("unchecked")
+            void call(Object lambda, Blackhole blackhole) {
+                ((ObjLongConsumer<Object>) lambda).accept(objectValue, longValue);
+            }
+        },
+        TO_DOUBLE_BI_FUNCTION(ToDoubleBiFunction.class) {
+            @Override
+            @SuppressWarnings("unchecked")
+            void call(Object lambda, Blackhole blackhole) {
+                blackhole.consume(((ToDoubleBiFunction<Object, Object>) lambda).applyAsDouble(objectValue, objectValue));
+            }
+        },
+        TO_DOUBLE_FUNCTION(ToDoubleFunction.class) {
+            @Override
+            @SuppressWarnings("unchecked")
+            void call(Object lambda, Blackhole blackhole) {
+                blackhole.consume(((ToDoubleFunction<Object>) lambda).applyAsDouble(objectValue));
+            }
+        },
+        TO_INT_BI_FUNCTION(ToIntBiFunction.class) {
+            @Override
+            @SuppressWarnings("unchecked")
+            void call(Object lambda, Blackhole blackhole) {
+                blackhole.consume(((ToIntBiFunction<Object, Object>) lambda).applyAsInt(objectValue, objectValue));
+            }
+        },
+        TO_INT_FUNCTION(ToIntFunction.class) {
+            @Override
+            @SuppressWarnings("unchecked")
+            void call(Object lambda, Blackhole blackhole) {
+                blackhole.consume(((ToIntFunction<Object>) lambda).applyAsInt(objectValue));
+            }
+        },
+        TO_LONG_BI_FUNCTION(ToLongBiFunction.class) {
+            @Override
+            @SuppressWarnings("unchecked")
+            void call(Object lambda, Blackhole blackhole) {
+                blackhole.consume(((ToLongBiFunction<Object, Object>) lambda).applyAsLong(objectValue, objectValue));
+            }
+        },
+        TO_LONG_FUNCTION(ToLongFunction.class) {
+            @Override
+            @SuppressWarnings("unchecked")
+            void call(Object lambda, Blackhole blackhole) {
+                blackhole.consume(((ToLongFunction<Object>) lambda).applyAsLong(objectValue));
+            }
+        };
+
+        final Class<?> type;
+
+        Shape(Class<?> type) {
+            this.type = type;
+        }
+
+        abstract void call(Object lambda, Blackhole blackhole);
+
+        /**
+         * A handle of the functional method's exact type which returns its last primitive argument,
+         * casted to the return type, or a constant if there is no such argument or the return type is an object.
+         */
+        MethodHandle target() {
+            MethodType type = Lambdas.functionalMethodType(this.type);
+            Class<?> returnType = type.returnType();
+            if (returnType == void.class) {
+                MethodHandle nothing = MethodHandles.constant(Object.class, null);
+                return MethodHandles.dropArguments(nothing, 0, type.parameterList()).asType(type);
+            }
+            if (!returnType.isPrimitive()) {
+                MethodHandle constant = MethodHandles.constant(returnType, objectValue);
+                return MethodHandles.dropArguments(constant, 0, type.parameterList());
+            }
+            for (int i = type.parameterCount() - 1; i >= 0; i--) {
+                Class<?> p = type.parameterType(i);
+                if (p.isPrimitive()) {
+                    MethodHandle identity = MethodHandles.explicitCastArguments(MethodHandles.identity(p), MethodType.methodType(returnType, p));
+                    return MethodHandles.permuteArguments(identity, type, i);
+                }
+            }
+            MethodHandle constant = MethodHandles.explicitCastArguments(MethodHandles.constant(int.class, 2), MethodType.methodType(returnType));
+            return MethodHandles.dropArguments(constant, 0, type.parameterList());
+        }
+    }
+
+    @Param
+    public Shape shape;
+
+    private Object lambdafied;
+    private Object lambdas;
+
+    @Setup
+    public void setup() {
+        MethodHandle target = shape.target();
+        lambdafied = Methods.lambdafy(target, shape.type);
+        lambdas = Lambdas.lambdafy(target, shape.type);
+    }
+
+    @Benchmark
+    public void testLambdafy(Blackhole blackhole) {
+        shape.call(lambdafied, blackhole);
+    }
+
+    @Benchmark @AllocationFree
+    public void testLambdas(Blackhole blackhole) {
+        shape.call(lambdas, blackhole);
+    }
+}
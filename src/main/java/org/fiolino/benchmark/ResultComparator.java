@@ -0,0 +1,145 @@
+package org.fiolino.benchmark;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Compares a benchmark run against a stored baseline, both as JSON files written by BenchmarkMain's history
+ * or with -rf json.
+ *
+ * A benchmark counts as regressed if its score got worse by more than the threshold percentage, and if the
+ * confidence intervals that JMH reported for both runs don't overlap; so a difference within the measurement
+ * error is never reported. If a run has no confidence interval (e.g. a single iteration), only the threshold
+ * counts. Higher is worse for all time based modes, lower is worse for throughput.
+ *
+ * Exits with 1 if anything has regressed, so that it can gate an upgrade of the commons library.
+ *
+ * Usage: ResultComparator baseline.json current.json [threshold percent]
+ *
+ * Created by kuli on 17.10.26.
+ */
+public final class ResultComparator {
+
+    /**
+     * Regressions up to this percentage are accepted.
+     */
+    private static final double DEFAULT_THRESHOLD = 10.0;
+
+    private static final String THROUGHPUT = "thrpt";
+
+    private ResultComparator() {
+        throw new AssertionError("Static class");
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: " + ResultComparator.class.getName() + " <baseline.json> <current.json> [threshold percent]");
+            System.exit(2);
+            return;
+        }
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_THRESHOLD;
+        Map<String, Score> baseline = read(args[0]);
+        Map<String, Score> current = read(args[1]);
+
+        List<String> regressions = new ArrayList<>();
+        System.out.println(String.format(Locale.ROOT, "%-80s %14s %14s %9s  %s", "Benchmark", "Baseline", "Current", "Change", "Units"));
+        for (Map.Entry<String, Score> e : current.entrySet()) {
+            Score now = e.getValue();
+            Score before = baseline.get(e.getKey());
+            if (before == null) {
+                System.out.println(String.format(Locale.ROOT, "%-80s %14s %14.3f %9s  %s", e.getKey(), "-", now.score, "new", now.unit));
+                continue;
+            }
+            double change = (now.score - before.score) / before.score * 100.0;
+            double worse = now.higherIsBetter ? -change : change;
+            boolean regressed = worse > threshold && !now.overlaps(before);
+            System.out.println(String.format(Locale.ROOT, "%-80s %14.3f %14.3f %+8.1f%%  %s%s", e.getKey(),
+                    before.score, now.score, change, now.unit, regressed ? "  REGRESSION" : ""));
+            if (regressed) {
+                regressions.add(String.format(Locale.ROOT, "%s regressed by %.1f%% (%.3f -> %.3f %s), threshold is %.1f%%",
+                        e.getKey(), worse, before.score, now.score, now.unit, threshold));
+            }
+        }
+        for (String key : baseline.keySet()) {
+            if (!current.containsKey(key)) {
+                System.out.println(String.format(Locale.ROOT, "%-80s %14.3f %14s %9s", key, baseline.get(key).score, "-", "missing"));
+            }
+        }
+
+        if (regressions.isEmpty()) {
+            System.out.println("No regressions beyond " + threshold + "%.");
+            return;
+        }
+        System.err.println();
+        for (String r : regressions) {
+            System.err.println(r);
+        }
+        System.exit(1);
+    }
+
+    private static Map<String, Score> read(String file) throws IOException {
+        String text = new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8);
+        Map<String, Score> scores = new LinkedHashMap<>();
+        for (Object entry : (List<?>) Json.parse(text)) {
+            Map<?, ?> result = (Map<?, ?>) entry;
+            String mode = (String) result.get("mode");
+            Map<?, ?> primary = (Map<?, ?>) result.get("primaryMetric");
+            List<?> confidence = (List<?>) primary.get("scoreConfidence");
+            Score score = new Score(Json.number(primary.get("score")),
+                    Json.number(confidence.get(0)), Json.number(confidence.get(1)),
+                    (String) primary.get("scoreUnit"), THROUGHPUT.equals(mode));
+            scores.put(keyOf(result, mode), score);
+        }
+        return scores;
+    }
+
+    /**
+     * The benchmark name with its parameters and mode, in the same form as BenchmarkMain's summary.
+     */
+    private static String keyOf(Map<?, ?> result, String mode) {
+        StringBuilder sb = new StringBuilder((String) result.get("benchmark"));
+        Map<?, ?> params = (Map<?, ?>) result.get("params");
+        if (params != null) {
+            String sep = ":";
+            for (Map.Entry<?, ?> p : params.entrySet()) {
+                sb.append(sep).append(p.getKey()).append('=').append(p.getValue());
+                sep = ",";
+            }
+        }
+        return sb.append(" [").append(mode).append(']').toString();
+    }
+
+    private static final class Score {
+        final double score;
+        final double lower;
+        final double upper;
+        final String unit;
+        final boolean higherIsBetter;
+
+        Score(double score, double lower, double upper, String unit, boolean higherIsBetter) {
+            this.score = score;
+            this.lower = lower;
+            this.upper = upper;
+            this.unit = unit;
+            this.higherIsBetter = higherIsBetter;
+        }
+
+        /**
+         * Whether both confidence intervals overlap; unknown intervals are treated as points.
+         */
+        boolean overlaps(Score other) {
+            double lo = Double.isNaN(lower) ? score : lower;
+            double hi = Double.isNaN(upper) ? score : upper;
+            double otherLo = Double.isNaN(other.lower) ? other.score : other.lower;
+            double otherHi = Double.isNaN(other.upper) ? other.score : other.upper;
+            return lo <= otherHi && otherLo <= hi;
+        }
+    }
+}
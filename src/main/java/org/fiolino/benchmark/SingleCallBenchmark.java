@@ -115,7 +115,7 @@ public class SingleCallBenchmark {
         blackhole.consume(finalGetterMethod.getAsInt());
     }
 
-    @Benchmark
+    @Benchmark @AllocationFree
     public void testAlmostFinalHandle(Blackhole blackhole) throws Throwable {
         blackhole.consume((int) GETTER_HANDLE.invokeExact());
     }
@@ -0,0 +1,144 @@
+package org.fiolino.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MutableCallSite;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntUnaryOperator;
+
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Calling one of 2, 4 or 16 strategies, where the choice changes with every iteration.
+ *
+ * Since all strategies get selected over time, the interface call gets bimorphic or megamorphic, and the switch
+ * on the volatile enum has to check the current value on every call. The AlmostFinalSelector and the bare
+ * MutableCallSite stay monomorphic for the current choice.
+ *
+ * Created by kuli on 17.10.26.
+ */
+@BenchmarkMode(Mode.AverageTime) @Warmup(iterations = 5) @Fork(value = 1) @OutputTimeUnit(TimeUnit.NANOSECONDS) @Measurement(iterations = 10)
+@State(Scope.Benchmark)
+public class StrategySelectorBenchmark {
+
+    public enum Strategy implements IntUnaryOperator {
+        S1 { @Override public int applyAsInt(int x) { return x + 1; } },
+        S2 { @Override public int applyAsInt(int x) { return x + 2; } },
+        S3 { @Override public int applyAsInt(int x) { return x + 3; } },
+        S4 { @Override public int applyAsInt(int x) { return x + 4; } },
+        S5 { @Override public int applyAsInt(int x) { return x + 5; } },
+        S6 { @Override public int applyAsInt(int x) { return x + 6; } },
+        S7 { @Override public int applyAsInt(int x) { return x + 7; } },
+        S8 { @Override public int applyAsInt(int x) { return x + 8; } },
+        S9 { @Override public int applyAsInt(int x) { return x + 9; } },
+        S10 { @Override public int applyAsInt(int x) { return x + 10; } },
+        S11 { @Override public int applyAsInt(int x) { return x + 11; } },
+        S12 { @Override public int applyAsInt(int x) { return x + 12; } },
+        S13 { @Override public int applyAsInt(int x) { return x + 13; } },
+        S14 { @Override public int applyAsInt(int x) { return x + 14; } },
+        S15 { @Override public int applyAsInt(int x) { return x + 15; } },
+        S16 { @Override public int applyAsInt(int x) { return x + 16; } }
+    }
+
+    static int applySwitch(Strategy strategy, int x) {
+        switch (strategy) {
+            case S1: return x + 1;
+            case S2: return x + 2;
+            case S3: return x + 3;
+            case S4: return x + 4;
+            case S5: return x + 5;
+            case S6: return x + 6;
+            case S7: return x + 7;
+            case S8: return x + 8;
+            case S9: return x + 9;
+            case S10: return x + 10;
+            case S11: return x + 11;
+            case S12: return x + 12;
+            case S13: return x + 13;
+            case S14: return x + 14;
+            case S15: return x + 15;
+            case S16: return x + 16;
+            default: throw new AssertionError(strategy);
+        }
+    }
+
+    private static final Map<Strategy, MethodHandle> HANDLES = new EnumMap<>(Strategy.class);
+
+    static {
+        MethodHandle apply;
+        try {
+            apply = lookup().findVirtual(Strategy.class, "applyAsInt", methodType(int.class, int.class));
+        } catch (IllegalAccessException | NoSuchMethodException ex) {
+            throw new AssertionError(ex);
+        }
+        for (Strategy s : Strategy.values()) {
+            HANDLES.put(s, apply.bindTo(s));
+        }
+    }
+
+    private static final AlmostFinalSelector<Strategy> SELECTOR = new AlmostFinalSelector<>(HANDLES, Strategy.S1);
+    private static final MethodHandle SELECTOR_INVOKER = SELECTOR.createInvoker();
+    private static final MutableCallSite CALL_SITE = new MutableCallSite(HANDLES.get(Strategy.S1));
+    private static final MethodHandle CALL_SITE_INVOKER = CALL_SITE.dynamicInvoker();
+
+    private static volatile Strategy volatileStrategy = Strategy.S1;
+    private static volatile IntUnaryOperator volatileOperator = Strategy.S1;
+
+    @Param({"2", "4", "16"})
+    public int strategies;
+
+    private int next;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        Strategy s = Strategy.values()[next];
+        next = (next + 1) % strategies;
+
+        volatileStrategy = s;
+        volatileOperator = s;
+        SELECTOR.select(s);
+        CALL_SITE.setTarget(HANDLES.get(s));
+        MutableCallSite.syncAll(new MutableCallSite[] {CALL_SITE});
+    }
+
+    @Benchmark
+    public void testVolatileEnumSwitch(Blackhole blackhole) {
+        int count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += applySwitch(volatileStrategy, i);
+        }
+        blackhole.consume(count);
+    }
+
+    @Benchmark
+    public void testInterface(Blackhole blackhole) {
+        int count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += volatileOperator.applyAsInt(i);
+        }
+        blackhole.consume(count);
+    }
+
+    @Benchmark @AllocationFree
+    public void testMutableCallSite(Blackhole blackhole) throws Throwable {
+        int count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += (int) CALL_SITE_INVOKER.invokeExact(i);
+        }
+        blackhole.consume(count);
+    }
+
+    @Benchmark @AllocationFree
+    public void testSelector(Blackhole blackhole) throws Throwable {
+        int count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += (int) SELECTOR_INVOKER.invokeExact(i);
+        }
+        blackhole.consume(count);
+    }
+}
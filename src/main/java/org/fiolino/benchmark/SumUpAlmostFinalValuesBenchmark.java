@@ -0,0 +1,162 @@
+package org.fiolino.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.invoke.MethodHandles.lookup;
+
+/**
+ * Same as SumUpIntegersBenchmark, but with whole configuration objects, longs and doubles as almost final values.
+ *
+ * If the projected field getters fold, testAlmostFinalField should be as fast as testDirectConstant;
+ * testAlmostFinalReference only gets the reference folded, so it's rather as fast as testDirectStaticFinalObject.
+ *
+ * Created by kuli on 17.10.26.
+ */
+@BenchmarkMode(Mode.AverageTime) @Warmup(iterations = 5) @Fork(value = 1) @OutputTimeUnit(TimeUnit.NANOSECONDS) @Measurement(iterations = 10)
+@State(Scope.Benchmark)
+public class SumUpAlmostFinalValuesBenchmark {
+
+    static final class Thresholds {
+        final int step;
+        final long limit;
+
+        Thresholds(int step, long limit) {
+            this.step = step;
+            this.limit = limit;
+        }
+    }
+
+    private static final int CONSTANT = 2;
+    private static final long LONG_CONSTANT = 2L;
+    private static final double DOUBLE_CONSTANT = 2.0;
+    private static final Thresholds STATIC_FINAL_OBJECT = new Thresholds(2, 1000L);
+    private static volatile Thresholds definitelyNotConstant = new Thresholds(2, 1000L);
+
+    private static final AlmostFinalValue<Thresholds> THRESHOLDS = AlmostFinalValue.forObject(Thresholds.class, new Thresholds(2, 1000L));
+    private static final MethodHandle THRESHOLDS_HANDLE = THRESHOLDS.createGetter();
+    private static final MethodHandle STEP_HANDLE;
+    private static final MethodHandle LIMIT_HANDLE;
+
+    private static final AlmostFinalValue<Long> LONG_VALUE = AlmostFinalValue.forLong(2L);
+    private static final MethodHandle LONG_HANDLE = LONG_VALUE.createGetter();
+    private static final AlmostFinalValue<Double> DOUBLE_VALUE = AlmostFinalValue.forDouble(2.0);
+    private static final MethodHandle DOUBLE_HANDLE = DOUBLE_VALUE.createGetter();
+
+    static {
+        try {
+            STEP_HANDLE = THRESHOLDS.createGetter(lookup().findGetter(Thresholds.class, "step", int.class));
+            LIMIT_HANDLE = THRESHOLDS.createGetter(lookup().findGetter(Thresholds.class, "limit", long.class));
+        } catch (IllegalAccessException | NoSuchFieldException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    @Benchmark
+    public void testDirectConstant(Blackhole blackhole) {
+        int count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += CONSTANT;
+        }
+        blackhole.consume(count);
+    }
+
+    @Benchmark
+    public void testDirectStaticFinalObject(Blackhole blackhole) {
+        int count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += STATIC_FINAL_OBJECT.step;
+        }
+        blackhole.consume(count);
+    }
+
+    @Benchmark
+    public void testDirectVolatile(Blackhole blackhole) {
+        int count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += definitelyNotConstant.step;
+        }
+        blackhole.consume(count);
+    }
+
+    @Benchmark @AllocationFree
+    public void testAlmostFinalReference(Blackhole blackhole) throws Throwable {
+        int count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += ((Thresholds) THRESHOLDS_HANDLE.invokeExact()).step;
+        }
+        blackhole.consume(count);
+    }
+
+    @Benchmark @AllocationFree
+    public void testAlmostFinalField(Blackhole blackhole) throws Throwable {
+        int count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += (int) STEP_HANDLE.invokeExact();
+        }
+        blackhole.consume(count);
+    }
+
+    @Benchmark @AllocationFree
+    public void testAlmostFinalFields(Blackhole blackhole) throws Throwable {
+        long count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += (int) STEP_HANDLE.invokeExact();
+            if (count > (long) LIMIT_HANDLE.invokeExact()) {
+                count = 0;
+            }
+        }
+        blackhole.consume(count);
+    }
+
+    @Benchmark
+    public void testDirectStaticFinalObjectFields(Blackhole blackhole) {
+        long count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += STATIC_FINAL_OBJECT.step;
+            if (count > STATIC_FINAL_OBJECT.limit) {
+                count = 0;
+            }
+        }
+        blackhole.consume(count);
+    }
+
+    @Benchmark
+    public void testDirectLongConstant(Blackhole blackhole) {
+        long count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += LONG_CONSTANT;
+        }
+        blackhole.consume(count);
+    }
+
+    @Benchmark @AllocationFree
+    public void testAlmostFinalLong(Blackhole blackhole) throws Throwable {
+        long count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += (long) LONG_HANDLE.invokeExact();
+        }
+        blackhole.consume(count);
+    }
+
+    @Benchmark
+    public void testDirectDoubleConstant(Blackhole blackhole) {
+        double count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += DOUBLE_CONSTANT;
+        }
+        blackhole.consume(count);
+    }
+
+    @Benchmark @AllocationFree
+    public void testAlmostFinalDouble(Blackhole blackhole) throws Throwable {
+        double count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += (double) DOUBLE_HANDLE.invokeExact();
+        }
+        blackhole.consume(count);
+    }
+}
@@ -37,12 +37,14 @@ public class SumUpIntegersBenchmark {
     private static final MethodHandle CONSTANT_GETTER;
     private static final IntSupplier CONSTANT_SUPPLIER;
 
+    @PregeneratedLambda(IntSupplier.class)
     static int getValue() {
         return 2;
     }
 
     private static final MethodHandle CONSTANT_METHOD;
     private static final IntSupplier CONSTANT_SUPPLIER_METHOD;
+    private static final IntSupplier PREGENERATED_SUPPLIER_METHOD;
 
     static int returnParameter(int value) {
         return value;
@@ -96,6 +98,7 @@ public class SumUpIntegersBenchmark {
         }
         CONSTANT_SUPPLIER = Methods.lambdafy(lookup, CONSTANT_GETTER, IntSupplier.class);
         CONSTANT_SUPPLIER_METHOD = Methods.lambdafy(lookup, CONSTANT_METHOD, IntSupplier.class);
+        PREGENERATED_SUPPLIER_METHOD = Lambdas.lambdafy(lookup, CONSTANT_METHOD, IntSupplier.class);
 
         RETURN_2 = Methods.lambdafy(lookup, r, IntSupplier.class, 2);
 
@@ -168,6 +171,15 @@ public class SumUpIntegersBenchmark {
         blackhole.consume(count);
     }
 
+    @Benchmark @AllocationFree
+    public void testHandleMethodPregenerated(Blackhole blackhole) {
+        int count = 0;
+        for (int i=0; i < 10_000; i++) {
+            count += PREGENERATED_SUPPLIER_METHOD.getAsInt();
+        }
+        blackhole.consume(count);
+    }
+
     @Benchmark
     public void testHandleInstanceMethod(Blackhole blackhole) throws Throwable {
         int count = 0;
@@ -186,7 +198,7 @@ public class SumUpIntegersBenchmark {
         blackhole.consume(count);
     }
 
-    @Benchmark
+    @Benchmark @AllocationFree
     public void testAlmostFinalHandle(Blackhole blackhole) throws Throwable {
         int count = 0;
         for (int i=0; i < 10_000; i++) {
@@ -213,7 +225,7 @@ public class SumUpIntegersBenchmark {
         blackhole.consume(count);
     }
 
-    @Benchmark
+    @Benchmark @AllocationFree
     public void testRegistry2(Blackhole blackhole) {
         int count = 0;
         for (int i=0; i < 10_000; i++) {
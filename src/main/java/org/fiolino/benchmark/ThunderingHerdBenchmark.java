@@ -0,0 +1,81 @@
+package org.fiolino.benchmark;
+
+import org.fiolino.common.reflection.OneTimeRegistryBuilder;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Many threads calling a one-time accessor that isn't initialized yet.
+ *
+ * Each iteration creates fresh registries, and every thread calls the accessor exactly once at the same time.
+ * The score is the time each thread had to wait for its value. An iteration fails if the target was
+ * executed more than once.
+ *
+ * Created by kuli on 17.10.26.
+ */
+@BenchmarkMode(Mode.SingleShotTime) @Warmup(iterations = 20) @Fork(value = 1) @OutputTimeUnit(TimeUnit.MICROSECONDS) @Measurement(iterations = 100)
+@Threads(8)
+@State(Scope.Benchmark)
+public class ThunderingHerdBenchmark {
+
+    private static final AtomicInteger EXECUTIONS = new AtomicInteger();
+    private static final MethodHandle COMPUTE;
+
+    private static long initializationCost;
+
+    static {
+        try {
+            COMPUTE = lookup().findStatic(ThunderingHerdBenchmark.class, "compute", methodType(int.class));
+        } catch (IllegalAccessException | NoSuchMethodException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    static int compute() {
+        EXECUTIONS.incrementAndGet();
+        Blackhole.consumeCPU(initializationCost);
+        return 2;
+    }
+
+    /**
+     * CPU work of the initialization, in JMH's tokens.
+     */
+    @Param({"0", "1000", "100000"})
+    public long initializationTokens;
+
+    private MethodHandle oneTimeAccessor;
+    private MethodHandle lockFreeAccessor;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        initializationCost = initializationTokens;
+        EXECUTIONS.set(0);
+        oneTimeAccessor = OneTimeRegistryBuilder.createFor(COMPUTE).getAccessor();
+        lockFreeAccessor = new LockFreeOneTimeRegistry(COMPUTE).getAccessor();
+    }
+
+    @TearDown(Level.Iteration)
+    public void checkExecutions() {
+        int n = EXECUTIONS.get();
+        if (n > 1) {
+            throw new IllegalStateException("Initialization was executed " + n + " times");
+        }
+    }
+
+    @Benchmark
+    public int testOneTimeRegistry() throws Throwable {
+        return (int) oneTimeAccessor.invokeExact();
+    }
+
+    @Benchmark
+    public int testLockFreeRegistry() throws Throwable {
+        return (int) lockFreeAccessor.invokeExact();
+    }
+}
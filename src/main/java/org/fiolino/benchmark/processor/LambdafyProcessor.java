@@ -0,0 +1,271 @@
+package org.fiolino.benchmark.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.ExecutableType;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Generates the lambda classes for all methods annotated with @PregeneratedLambda.
+ *
+ * For each interface, a class named Owner$$Lambdafy$method$interface gets generated into the owner's package;
+ * the interface name has its dots replaced by underscores. The class implements the interface by calling the
+ * static method directly, and provides its singleton as INSTANCE and the method's descriptor as DESCRIPTOR.
+ * Lambdas.lambdafy() looks it up by the same name.
+ *
+ * Each of the interface's parameters must be assignable or castable to the method's parameter, and the method's
+ * return type must be assignable to the interface's, unless that is void. Since the class name doesn't contain
+ * the parameter types, only one of several overloads can be pregenerated for the same interface.
+ *
+ * Created by kuli on 17.10.26.
+ */
+@SupportedAnnotationTypes(LambdafyProcessor.ANNOTATION)
+public final class LambdafyProcessor extends AbstractProcessor {
+
+    static final String ANNOTATION = "org.fiolino.benchmark.PregeneratedLambda";
+
+    private static final String INFIX = "$$Lambdafy$";
+
+    private final Map<String, ExecutableElement> generated = new HashMap<>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (TypeElement annotation : annotations) {
+            for (ExecutableElement method : ElementFilter.methodsIn(roundEnv.getElementsAnnotatedWith(annotation))) {
+                for (TypeElement functionalInterface : interfacesOf(method)) {
+                    generate(method, functionalInterface);
+                }
+            }
+        }
+        return true;
+    }
+
+    private List<? extends AnnotationValue> valuesOf(AnnotationMirror mirror) {
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> e : mirror.getElementValues().entrySet()) {
+            if (e.getKey().getSimpleName().contentEquals("value")) {
+                @SuppressWarnings("unchecked")
+                List<? extends AnnotationValue> values = (List<? extends AnnotationValue>) e.getValue().getValue();
+                return values;
+            }
+        }
+        throw new AssertionError(ANNOTATION + " without value");
+    }
+
+    private List<TypeElement> interfacesOf(ExecutableElement method) {
+        List<TypeElement> interfaces = new ArrayList<>();
+        for (AnnotationMirror mirror : method.getAnnotationMirrors()) {
+            if (!((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(ANNOTATION)) {
+                continue;
+            }
+            for (AnnotationValue v : valuesOf(mirror)) {
+                interfaces.add((TypeElement) ((DeclaredType) v.getValue()).asElement());
+            }
+        }
+        return interfaces;
+    }
+
+    private void generate(ExecutableElement method, TypeElement functionalInterface) {
+        Set<Modifier> modifiers = method.getModifiers();
+        if (!modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.PRIVATE)) {
+            error(method, "Only non-private static methods can be pregenerated");
+            return;
+        }
+        ExecutableElement functionalMethod = findFunctionalMethod(functionalInterface);
+        if (functionalMethod == null) {
+            error(method, functionalInterface + " is not a functional interface");
+            return;
+        }
+        Types types = processingEnv.getTypeUtils();
+        ExecutableType functionalType = (ExecutableType) types.erasure(functionalMethod.asType());
+        List<? extends TypeMirror> parameters = functionalType.getParameterTypes();
+        ExecutableType targetType = (ExecutableType) types.erasure(method.asType());
+        List<? extends TypeMirror> targetParameters = targetType.getParameterTypes();
+        if (parameters.size() != targetParameters.size()) {
+            error(method, "Must have " + parameters.size() + " parameters to implement " + functionalInterface);
+            return;
+        }
+        for (int i = 0; i < parameters.size(); i++) {
+            if (!accepts(types, parameters.get(i), targetParameters.get(i))) {
+                error(method, "Parameter " + (i + 1) + " of type " + targetParameters.get(i) + " doesn't accept "
+                        + parameters.get(i) + " from " + functionalInterface);
+                return;
+            }
+        }
+        TypeMirror returnType = functionalType.getReturnType();
+        if (returnType.getKind() != TypeKind.VOID && !types.isAssignable(targetType.getReturnType(), returnType)) {
+            error(method, "Return type " + targetType.getReturnType() + " doesn't fit " + returnType + " of " + functionalInterface);
+            return;
+        }
+
+        Elements elements = processingEnv.getElementUtils();
+        TypeElement owner = (TypeElement) method.getEnclosingElement();
+        String packageName = elements.getPackageOf(owner).getQualifiedName().toString();
+        String ownerName = elements.getBinaryName(owner).toString();
+        String className = ownerName + INFIX + method.getSimpleName() + "$"
+                + elements.getBinaryName(functionalInterface).toString().replace('.', '_');
+        ExecutableElement clash = generated.putIfAbsent(className, method);
+        if (clash != null) {
+            error(method, "Overloads of " + method.getSimpleName() + " can't both be pregenerated for "
+                    + functionalInterface + ", since they would share " + className);
+            return;
+        }
+        String simpleName = packageName.isEmpty() ? className : className.substring(packageName.length() + 1);
+        String interfaceName = types.erasure(functionalInterface.asType()).toString();
+        boolean isVoid = returnType.getKind() == TypeKind.VOID;
+        boolean isChecked = !method.getThrownTypes().isEmpty();
+
+        StringBuilder params = new StringBuilder();
+        StringBuilder args = new StringBuilder();
+        for (int i = 0; i < parameters.size(); i++) {
+            String sep = i == 0 ? "" : ", ";
+            params.append(sep).append(parameters.get(i)).append(" a").append(i);
+            args.append(sep);
+            if (!types.isSameType(parameters.get(i), targetParameters.get(i))) {
+                args.append('(').append(targetParameters.get(i)).append(") ");
+            }
+            args.append('a').append(i);
+        }
+        String call = (isVoid ? "" : "return ") + owner.getQualifiedName() + "." + method.getSimpleName() + "(" + args + ");";
+
+        try (PrintWriter out = new PrintWriter(processingEnv.getFiler().createSourceFile(className, method).openWriter())) {
+            if (!packageName.isEmpty()) {
+                out.println("package " + packageName + ";");
+                out.println();
+            }
+            out.println("/**");
+            out.println(" * Generated by LambdafyProcessor for " + owner.getQualifiedName() + "." + method.getSimpleName() + "().");
+            out.println(" */");
+            out.println("@SuppressWarnings({\"rawtypes\", \"unchecked\"})");
+            out.println("public final class " + simpleName + " implements " + interfaceName + " {");
+            out.println("    public static final String DESCRIPTOR = \"" + descriptorOf(targetType) + "\";");
+            out.println("    public static final " + interfaceName + " INSTANCE = new " + simpleName + "();");
+            out.println();
+            out.println("    private " + simpleName + "() {");
+            out.println("    }");
+            out.println();
+            out.println("    @Override");
+            out.println("    public " + functionalType.getReturnType() + " " + functionalMethod.getSimpleName() + "(" + params + ") {");
+            if (isChecked) {
+                out.println("        try {");
+                out.println("            " + call);
+                out.println("        } catch (RuntimeException | Error e) {");
+                out.println("            throw e;");
+                out.println("        } catch (Throwable t) {");
+                out.println("            throw new java.lang.reflect.UndeclaredThrowableException(t);");
+                out.println("        }");
+            } else {
+                out.println("        " + call);
+            }
+            out.println("    }");
+            out.println("}");
+        } catch (IOException ex) {
+            error(method, "Cannot generate " + className + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Whether the generated code can pass an argument of the interface's parameter type to the method: either
+     * directly, or by casting a reference down to the parameter type or to its box.
+     */
+    private static boolean accepts(Types types, TypeMirror argument, TypeMirror parameter) {
+        if (types.isAssignable(argument, parameter)) {
+            return true;
+        }
+        if (argument.getKind().isPrimitive()) {
+            return false;
+        }
+        if (parameter.getKind().isPrimitive()) {
+            return types.isSubtype(types.boxedClass((PrimitiveType) parameter).asType(), argument);
+        }
+        return types.isSubtype(parameter, argument);
+    }
+
+    private ExecutableElement findFunctionalMethod(TypeElement functionalInterface) {
+        if (!functionalInterface.getKind().isInterface()) {
+            return null;
+        }
+        Elements elements = processingEnv.getElementUtils();
+        TypeElement object = elements.getTypeElement("java.lang.Object");
+        ExecutableElement found = null;
+        for (ExecutableElement m : ElementFilter.methodsIn(elements.getAllMembers(functionalInterface))) {
+            if (!m.getModifiers().contains(Modifier.ABSTRACT) || overridesObjectMethod(m, object, functionalInterface)) {
+                continue;
+            }
+            if (found != null) {
+                return null;
+            }
+            found = m;
+        }
+        return found;
+    }
+
+    private boolean overridesObjectMethod(ExecutableElement m, TypeElement object, TypeElement type) {
+        Elements elements = processingEnv.getElementUtils();
+        for (ExecutableElement o : ElementFilter.methodsIn(object.getEnclosedElements())) {
+            if (elements.overrides(m, o, type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String descriptorOf(ExecutableType type) {
+        StringBuilder sb = new StringBuilder("(");
+        for (TypeMirror p : type.getParameterTypes()) {
+            sb.append(descriptorOf(p));
+        }
+        return sb.append(')').append(descriptorOf(type.getReturnType())).toString();
+    }
+
+    private String descriptorOf(TypeMirror type) {
+        switch (type.getKind()) {
+            case BOOLEAN: return "Z";
+            case BYTE: return "B";
+            case CHAR: return "C";
+            case SHORT: return "S";
+            case INT: return "I";
+            case LONG: return "J";
+            case FLOAT: return "F";
+            case DOUBLE: return "D";
+            case VOID: return "V";
+            case ARRAY: return "[" + descriptorOf(((ArrayType) type).getComponentType());
+            case DECLARED:
+                TypeElement e = (TypeElement) ((DeclaredType) type).asElement();
+                return "L" + processingEnv.getElementUtils().getBinaryName(e).toString().replace('.', '/') + ";";
+            default:
+                throw new IllegalArgumentException("Unexpected type " + type);
+        }
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
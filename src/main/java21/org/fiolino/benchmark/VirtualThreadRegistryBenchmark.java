@@ -0,0 +1,168 @@
+package org.fiolino.benchmark;
+
+import jdk.jfr.consumer.RecordedThread;
+import jdk.jfr.consumer.RecordingStream;
+import org.fiolino.common.reflection.OneTimeRegistryBuilder;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.invoke.MethodHandle;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * 100,000 virtual threads calling a one-time accessor once each, spread over 256 keys.
+ *
+ * With initialized=false, every invocation starts with fresh registries, so that the first thread per key
+ * executes the target while the others wait for it; with initialized=true, all keys are there before. The target
+ * parks for initializationMicros, like a lookup that does I/O.
+ *
+ * OneTimeRegistryBuilder executes the target inside a monitor, which pins the carrier threads of the initializing
+ * thread and of all waiting ones; PrimitiveKeyedRegistry and ParkingOneTimeRegistry let them wait on a latch.
+ * The score is the number of calls per millisecond.
+ *
+ * Two kinds of pinning are recorded with JFR over the whole trial, and printed at its end. jdk.VirtualThreadPinned
+ * only fires when a virtual thread parks while pinned, like the initializing one inside the monitor; the waiting
+ * ones block on the contended monitor entry instead, which holds their carriers just the same but shows up as
+ * jdk.JavaMonitorEnter, counted here for virtual threads only. With a single carrier, there's no contention at
+ * all, since the pinned initializing thread keeps all others from running; set
+ * -Djdk.virtualThreadScheduler.parallelism to see it.
+ *
+ * Needs Java 21; it's only compiled with the jdk21 profile.
+ *
+ * Created by kuli on 17.10.26.
+ */
+@BenchmarkMode(Mode.Throughput) @Warmup(iterations = 5) @Fork(value = 1) @OutputTimeUnit(TimeUnit.MILLISECONDS) @Measurement(iterations = 10)
+@State(Scope.Benchmark)
+public class VirtualThreadRegistryBenchmark {
+
+    private static final int THREADS = 100_000;
+    private static final int KEYS = 256;
+
+    private static final AtomicInteger EXECUTIONS = new AtomicInteger();
+    private static final MethodHandle COMPUTE;
+
+    private static long initializationNanos;
+
+    static {
+        try {
+            COMPUTE = lookup().findStatic(VirtualThreadRegistryBenchmark.class, "compute", methodType(Integer.class, int.class));
+        } catch (IllegalAccessException | NoSuchMethodException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    static Integer compute(int key) {
+        EXECUTIONS.incrementAndGet();
+        if (initializationNanos > 0) {
+            LockSupport.parkNanos(initializationNanos);
+        }
+        return key;
+    }
+
+    @Param({"oneTime", "primitiveKeyed", "parking"})
+    public String registry;
+
+    @Param({"false", "true"})
+    public boolean initialized;
+
+    @Param({"0", "100"})
+    public long initializationMicros;
+
+    private MethodHandle accessor;
+    private RecordingStream pinningEvents;
+    private final LongAdder pinned = new LongAdder();
+    private final LongAdder pinnedNanos = new LongAdder();
+    private final LongAdder blocked = new LongAdder();
+    private final LongAdder blockedNanos = new LongAdder();
+
+    @Setup(Level.Trial)
+    public void startRecording() {
+        initializationNanos = TimeUnit.MICROSECONDS.toNanos(initializationMicros);
+        pinningEvents = new RecordingStream();
+        pinningEvents.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO);
+        pinningEvents.onEvent("jdk.VirtualThreadPinned", e -> {
+            pinned.increment();
+            pinnedNanos.add(e.getDuration().toNanos());
+        });
+        pinningEvents.enable("jdk.JavaMonitorEnter").withThreshold(Duration.ZERO);
+        pinningEvents.onEvent("jdk.JavaMonitorEnter", e -> {
+            RecordedThread thread = e.getThread();
+            if (thread != null && thread.isVirtual()) {
+                blocked.increment();
+                blockedNanos.add(e.getDuration().toNanos());
+            }
+        });
+        pinningEvents.startAsync();
+    }
+
+    @TearDown(Level.Trial)
+    public void printPinningEvents() {
+        pinningEvents.stop();
+        pinningEvents.close();
+        System.out.println();
+        System.out.println("Pinned virtual threads: " + pinned.sum() + " events, "
+                + TimeUnit.NANOSECONDS.toMillis(pinnedNanos.sum()) + " ms in total");
+        System.out.println("Virtual threads blocked on a monitor: " + blocked.sum() + " events, "
+                + TimeUnit.NANOSECONDS.toMillis(blockedNanos.sum()) + " ms in total");
+    }
+
+    @Setup(Level.Invocation)
+    public void createRegistry() throws Throwable {
+        switch (registry) {
+            case "oneTime":
+                accessor = OneTimeRegistryBuilder.createFor(COMPUTE).getAccessor();
+                break;
+            case "primitiveKeyed":
+                accessor = new PrimitiveKeyedRegistry(COMPUTE).getAccessor();
+                break;
+            case "parking":
+                accessor = new ParkingOneTimeRegistry(COMPUTE).getAccessor();
+                break;
+            default:
+                throw new IllegalArgumentException(registry);
+        }
+        if (initialized) {
+            for (int i=0; i < KEYS; i++) {
+                Integer v = (Integer) accessor.invokeExact(i);
+            }
+        }
+        EXECUTIONS.set(0);
+    }
+
+    @TearDown(Level.Invocation)
+    public void checkExecutions() {
+        int n = EXECUTIONS.get();
+        if (n > (initialized ? 0 : KEYS)) {
+            throw new IllegalStateException("Target was executed " + n + " times");
+        }
+    }
+
+    @Benchmark @OperationsPerInvocation(THREADS)
+    public void testVirtualThreads(Blackhole blackhole) {
+        LongAdder sum = new LongAdder();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i=0; i < THREADS; i++) {
+                int key = i & (KEYS - 1);
+                executor.execute(() -> {
+                    try {
+                        sum.add((Integer) accessor.invokeExact(key));
+                    } catch (RuntimeException | Error e) {
+                        throw e;
+                    } catch (Throwable t) {
+                        throw new IllegalStateException(t);
+                    }
+                });
+            }
+        }
+        blackhole.consume(sum.sum());
+    }
+}